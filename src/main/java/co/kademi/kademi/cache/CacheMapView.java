@@ -0,0 +1,179 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import com.google.common.cache.Cache;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * The asMap() view for our own guava Cache implementations. It is weakly
+ * consistent, like a ConcurrentHashMap's: iteration works from a copy of the
+ * entries, and removing through the iterator invalidates the entry. The
+ * atomic ConcurrentMap operations are all done with the cache's compute,
+ * which runs under the segment's write lock
+ *
+ * @author brad
+ */
+class CacheMapView extends AbstractMap<Object, Object> implements ConcurrentMap<Object, Object> {
+
+    private final Cache<Object, Object> cache;
+    private final Supplier<List<Map.Entry<Object, Object>>> entries;
+    private final Compute compute;
+
+    CacheMapView(Cache<Object, Object> cache, Supplier<List<Map.Entry<Object, Object>>> entries, Compute compute) {
+        this.cache = cache;
+        this.entries = entries;
+        this.compute = compute;
+    }
+
+    @Override
+    public Set<Map.Entry<Object, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Object>>() {
+            @Override
+            public Iterator<Map.Entry<Object, Object>> iterator() {
+                Iterator<Map.Entry<Object, Object>> it = entries.get().iterator();
+                return new Iterator<Map.Entry<Object, Object>>() {
+                    private Map.Entry<Object, Object> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return it.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<Object, Object> next() {
+                        current = it.next();
+                        return current;
+                    }
+
+                    @Override
+                    public void remove() {
+                        if (current == null) {
+                            throw new IllegalStateException();
+                        }
+                        cache.invalidate(current.getKey());
+                        current = null;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return CacheMapView.this.size();
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, cache.size());
+    }
+
+    @Override
+    public Object get(Object key) {
+        return cache.getIfPresent(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return cache.getIfPresent(key) != null;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        Object old = cache.getIfPresent(key);
+        cache.put(key, value);
+        return old;
+    }
+
+    @Override
+    public Object remove(Object key) {
+        Object old = cache.getIfPresent(key);
+        cache.invalidate(key);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public Object compute(Object key, BiFunction<? super Object, ? super Object, ? extends Object> fn) {
+        Objects.requireNonNull(fn);
+        return compute.compute(key, fn);
+    }
+
+    @Override
+    public Object putIfAbsent(Object key, Object value) {
+        Objects.requireNonNull(value);
+        Object[] existing = new Object[1];
+        compute.compute(key, (k, v) -> {
+            existing[0] = v;
+            return v != null ? v : value;
+        });
+        return existing[0];
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        if (value == null) {
+            return false;
+        }
+        boolean[] removed = new boolean[1];
+        compute.compute(key, (k, v) -> {
+            if (value.equals(v)) {
+                removed[0] = true;
+                return null;
+            }
+            return v;
+        });
+        return removed[0];
+    }
+
+    @Override
+    public boolean replace(Object key, Object oldValue, Object newValue) {
+        Objects.requireNonNull(oldValue);
+        Objects.requireNonNull(newValue);
+        boolean[] replaced = new boolean[1];
+        compute.compute(key, (k, v) -> {
+            if (oldValue.equals(v)) {
+                replaced[0] = true;
+                return newValue;
+            }
+            return v;
+        });
+        return replaced[0];
+    }
+
+    @Override
+    public Object replace(Object key, Object value) {
+        Objects.requireNonNull(value);
+        Object[] existing = new Object[1];
+        compute.compute(key, (k, v) -> {
+            existing[0] = v;
+            return v != null ? value : null;
+        });
+        return existing[0];
+    }
+
+    /**
+     * Atomically update the entry for a key. The function is given the
+     * current value, or null, and returns the new value, or null to remove
+     * the entry. Returns the new value
+     */
+    interface Compute {
+
+        Object compute(Object key, BiFunction<? super Object, ? super Object, ? extends Object> fn);
+    }
+}
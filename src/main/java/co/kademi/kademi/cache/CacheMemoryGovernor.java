@@ -0,0 +1,275 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Enforces a node wide budget across all regions and partitions.
+ *
+ * Each partition cache has its own max_size, so without this total memory is
+ * regions x partitions x max_size. The governor periodically totals what every
+ * partition is using, shares the budget between partitions (ie tenants) in
+ * proportion to their recent hit counts, and trims any tenant which is using
+ * more than its share. No tenant may have more than max_partition_fraction of
+ * the budget, regardless of hit rate.
+ *
+ * The budget is either in entries (hibernate.cache.global.max_entries) or in
+ * estimated bytes (hibernate.cache.global.max_bytes), in which case each
+ * region's entries are weighted by its estimated entry size.
+ *
+ * Rebalancing runs every rebalance_secs on a background thread, started and
+ * stopped with the region factory, so it never delays a request. Trimming
+ * removes the entries each partition's cache would evict itself, see
+ * CachePartition.trimTo
+ *
+ * @author brad
+ */
+public class CacheMemoryGovernor {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheMemoryGovernor.class);
+
+    private final Map<String, KademiCacheRegion> mapOfRegions;
+    private final long offHeapMaxBytes;
+    private final int offHeapSlabBytes;
+    private OffHeapSlabPool offHeapPool;
+    private final long budget;
+    private final boolean byteBudget;
+    private final double maxPartitionFraction;
+    private final long rebalanceMillis;
+    private ScheduledExecutorService scheduler;
+    private final AtomicLong rebalances = new AtomicLong();
+    private final AtomicLong entriesTrimmed = new AtomicLong();
+    private volatile long lastUsage;
+    private volatile int lastTenantCount;
+
+    public CacheMemoryGovernor(Properties props, Map<String, KademiCacheRegion> mapOfRegions) {
+        this.mapOfRegions = mapOfRegions;
+        long maxBytes = Long.parseLong(props.getProperty("hibernate.cache.global.max_bytes", "0"));
+        if (maxBytes > 0) {
+            this.budget = maxBytes;
+            this.byteBudget = true;
+        } else {
+            this.budget = Long.parseLong(props.getProperty("hibernate.cache.global.max_entries", "0"));
+            this.byteBudget = false;
+        }
+        this.maxPartitionFraction = Double.parseDouble(props.getProperty("hibernate.cache.global.max_partition_fraction", "0.25"));
+        this.offHeapMaxBytes = Long.parseLong(props.getProperty("hibernate.cache.offheap.max_bytes", String.valueOf(256 * 1024 * 1024)));
+        this.offHeapSlabBytes = Integer.parseInt(props.getProperty("hibernate.cache.offheap.slab_bytes", String.valueOf(4 * 1024 * 1024)));
+        this.rebalanceMillis = TimeUnit.SECONDS.toMillis(Integer.parseInt(props.getProperty("hibernate.cache.global.rebalance_secs", "10")));
+        if (isEnabled()) {
+            log.info("Cache memory governor: budget={} {} max partition fraction={}", budget, byteBudget ? "bytes" : "entries", maxPartitionFraction);
+        }
+    }
+
+    /**
+     * The node wide pool of direct memory for regions which use off heap
+     * storage. Created on first use, so no direct memory is allocated unless
+     * some region has off heap enabled
+     *
+     * @return
+     */
+    public synchronized OffHeapSlabPool getOffHeapPool() {
+        if (offHeapPool == null) {
+            offHeapPool = new OffHeapSlabPool(offHeapMaxBytes, offHeapSlabBytes);
+        }
+        return offHeapPool;
+    }
+
+    public final boolean isEnabled() {
+        return budget > 0;
+    }
+
+    /**
+     * Start rebalancing every rebalance_secs, if enabled
+     */
+    public synchronized void start() {
+        if (!isEnabled() || scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "CacheMemoryGovernor");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::runRebalance, rebalanceMillis, rebalanceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    private void runRebalance() {
+        try {
+            rebalance();
+        } catch (Throwable e) {
+            log.error("Exception rebalancing cache memory", e);
+        }
+    }
+
+    /**
+     * Total usage per tenant, allocate the budget, and trim tenants which are
+     * over their allowance
+     */
+    void rebalance() {
+        rebalances.incrementAndGet();
+        Map<Serializable, TenantUsage> tenants = new HashMap<>();
+        long total = 0;
+        for (KademiCacheRegion r : mapOfRegions.values()) {
+            long unitWeight = unitWeight(r);
+            for (CachePartition p : r.getCache().partitions()) {
+                TenantUsage tu = tenants.get(p.id);
+                if (tu == null) {
+                    tu = new TenantUsage(p.id);
+                    tenants.put(p.id, tu);
+                }
+                long units = p.heapSize() * unitWeight;
+                long[] hits = p.takeRecentHits();
+                tu.add(p, units, hits[0]);
+                total += units;
+            }
+        }
+        lastUsage = total;
+        lastTenantCount = tenants.size();
+
+        long maxPerTenant = (long) (budget * maxPartitionFraction);
+        if (total <= budget) {
+            // Only need to enforce the per tenant cap
+            for (TenantUsage tu : tenants.values()) {
+                if (tu.used > maxPerTenant) {
+                    trim(tu, maxPerTenant);
+                }
+            }
+            return;
+        }
+
+        allocate(new ArrayList<>(tenants.values()), maxPerTenant);
+        for (TenantUsage tu : tenants.values()) {
+            if (tu.used > tu.allowance) {
+                trim(tu, tu.allowance);
+            }
+        }
+    }
+
+    /**
+     * Weighted max-min fair allocation of the budget. Each tenant's weight is
+     * its recent hit count (plus one, so tenants with no hits still get
+     * something). Tenants which need less than their weighted share get what
+     * they need, and the surplus is shared between the rest.
+     *
+     * @param list
+     * @param maxPerTenant
+     */
+    private void allocate(List<TenantUsage> list, long maxPerTenant) {
+        long remaining = budget;
+        List<TenantUsage> unsettled = list;
+        boolean changed = true;
+        while (changed && !unsettled.isEmpty()) {
+            changed = false;
+            double totalWeight = 0;
+            for (TenantUsage tu : unsettled) {
+                totalWeight += tu.weight();
+            }
+            List<TenantUsage> next = new ArrayList<>();
+            for (TenantUsage tu : unsettled) {
+                long share = Math.min(maxPerTenant, (long) (remaining * tu.weight() / totalWeight));
+                if (tu.used <= share) {
+                    tu.allowance = tu.used;
+                    remaining -= tu.used;
+                    changed = true;
+                } else {
+                    next.add(tu);
+                }
+            }
+            unsettled = next;
+        }
+        double totalWeight = 0;
+        for (TenantUsage tu : unsettled) {
+            totalWeight += tu.weight();
+        }
+        for (TenantUsage tu : unsettled) {
+            tu.allowance = Math.min(maxPerTenant, (long) (remaining * tu.weight() / totalWeight));
+        }
+    }
+
+    /**
+     * Reduce each of the tenant's partitions in proportion, so their total is
+     * no more than the allowance
+     *
+     * @param tu
+     * @param allowance
+     */
+    private void trim(TenantUsage tu, long allowance) {
+        double ratio = tu.used == 0 ? 0 : allowance / (double) tu.used;
+        long removed = 0;
+        for (CachePartition p : tu.partitions) {
+            long target = (long) (p.heapSize() * ratio);
+            removed += p.trimTo(target);
+        }
+        entriesTrimmed.addAndGet(removed);
+        log.info("trim: partition={} used={} allowance={} removed entries={}", tu.id, tu.used, allowance, removed);
+    }
+
+    private long unitWeight(KademiCacheRegion r) {
+        if (byteBudget) {
+            return r.getEstimatedEntryBytes();
+        }
+        return 1;
+    }
+
+    public Map<String, Object> getInfo() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("enabled", isEnabled());
+        map.put("budget", budget);
+        map.put("budgetUnits", byteBudget ? "bytes" : "entries");
+        map.put("maxPartitionFraction", maxPartitionFraction);
+        map.put("usage", lastUsage);
+        map.put("tenants", lastTenantCount);
+        map.put("rebalances", rebalances.get());
+        map.put("entriesTrimmed", entriesTrimmed.get());
+        synchronized (this) {
+            if (offHeapPool != null) {
+                map.put("offHeap", offHeapPool.getInfo());
+            }
+        }
+        return map;
+    }
+
+    private static class TenantUsage {
+
+        private final Serializable id;
+        private final List<CachePartition> partitions = new ArrayList<>();
+        private long used;
+        private long recentHits;
+        private long allowance;
+
+        TenantUsage(Serializable id) {
+            this.id = id;
+        }
+
+        void add(CachePartition p, long units, long hits) {
+            partitions.add(p);
+            used += units;
+            recentHits += hits;
+        }
+
+        double weight() {
+            return recentHits + 1;
+        }
+    }
+}
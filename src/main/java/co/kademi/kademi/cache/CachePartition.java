@@ -0,0 +1,448 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.Maps;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * The cache for a single partition (ie tenant) within a region, plus the
+ * bookkeeping needed to reclaim it when idle and to govern how much memory it
+ * may use.
+ *
+ * If the region has an off heap tier then the guava cache is just a small
+ * hot set, and all entries are written through to the off heap index.
+ *
+ * If the region has a disk overflow tier then entries evicted from the guava
+ * cache for size are demoted to the overflow index (by a removal listener on
+ * the cache) and promoted back when next read. Guava may deliver the eviction
+ * notification after a concurrent invalidation of the same key, so keys
+ * invalidated in the last few seconds are never demoted
+ *
+ * When there are tiers, values are stored wrapped in a TimedValue holding
+ * when they expire, so moving an entry between tiers doesnt restart its time
+ * to live. Expired values are treated as misses wherever they are found. The
+ * same wrapper gives each entry its own jittered TTL in guava caches, which
+ * only support a single TTL for the whole cache, and records when it was last
+ * read, so the governor can trim the least recently used entries
+ *
+ * @author brad
+ */
+class CachePartition {
+
+    private static final long DEMOTION_GUARD_MS = 10000;
+    private static final int INVALIDATION_STRIPES = 64;
+
+    final Serializable id;
+    final long generation;
+    final Cache<Object, Object> cache;
+    private final ExpiryPolicy expiry;
+    private final boolean timed;
+    private final OffHeapTier offHeapTier;
+    private final Cache<Object, OffHeapSlabPool.Ref> offHeap;
+    private final OffHeapTier overflowTier;
+    private final Cache<Object, OffHeapSlabPool.Ref> overflow;
+    private final Cache<Object, Boolean> recentlyInvalidated;
+    // Invalidation counts, by key hash and for the whole partition. Used to
+    // detect an invalidation racing with a promotion between tiers
+    private final AtomicLongArray keyInvalidations = new AtomicLongArray(INVALIDATION_STRIPES);
+    private final AtomicLong allInvalidations = new AtomicLong();
+    private volatile long lastInvalidateAll;
+    private volatile long lastAccessed;
+
+    // Hit counts as of the last time the governor looked at this partition
+    private long lastHitCount;
+    private long lastRequestCount;
+
+    /**
+     *
+     * @param id
+     * @param generation - the partition's generation when this was created,
+     * see InvalidationManager.invalidatePartition
+     * @param cacheFactory - builds the guava cache, given an optional removal
+     * listener
+     * @param offHeapTier - optional
+     * @param overflowTier - optional
+     * @param expiry
+     */
+    CachePartition(Serializable id, long generation, Function<RemovalListener<Object, Object>, Cache<Object, Object>> cacheFactory, OffHeapTier offHeapTier, OffHeapTier overflowTier, ExpiryPolicy expiry) {
+        this.id = id;
+        this.generation = generation;
+        this.offHeapTier = offHeapTier;
+        this.overflowTier = overflowTier;
+        this.expiry = expiry;
+        int seconds = expiry.getTtlSeconds();
+        if (offHeapTier != null) {
+            this.offHeap = offHeapTier.createIndex(seconds);
+        } else {
+            this.offHeap = null;
+        }
+        if (overflowTier != null && offHeapTier == null) {
+            this.overflow = overflowTier.createIndex(seconds);
+            this.recentlyInvalidated = CacheBuilder.newBuilder()
+                    .expireAfterWrite(DEMOTION_GUARD_MS, TimeUnit.MILLISECONDS)
+                    .build();
+            this.cache = cacheFactory.apply(this::onRemoval);
+        } else {
+            this.overflow = null;
+            this.recentlyInvalidated = null;
+            this.cache = cacheFactory.apply(null);
+        }
+        boolean ownPolicy = cache instanceof TinyLfuCache || cache instanceof LongKeyedCache;
+        this.timed = offHeapTier != null || overflowTier != null || !ownPolicy;
+        this.lastAccessed = System.currentTimeMillis();
+    }
+
+    private void onRemoval(RemovalNotification<Object, Object> n) {
+        if (n.getCause() != RemovalCause.SIZE || n.getKey() == null || n.getValue() == null) {
+            return;
+        }
+        demote(n.getKey(), n.getValue());
+    }
+
+    private void demote(Object key, Object stored) {
+        if (System.currentTimeMillis() - lastInvalidateAll < DEMOTION_GUARD_MS || recentlyInvalidated.getIfPresent(key) != null) {
+            return;
+        }
+        if (isExpired(stored)) {
+            return;
+        }
+        overflowTier.write(overflow, key, stored); // keeps its original expiry
+    }
+
+    Object getIfPresent(Object key) {
+        Object stored = cache.getIfPresent(key);
+        if (stored != null) {
+            if (!isExpired(stored)) {
+                return read(stored);
+            }
+            cache.asMap().remove(key, stored);
+        }
+        if (offHeap != null) {
+            long seq = invalidationSeq(key);
+            stored = offHeapTier.read(offHeap, key);
+            if (stored == null || isExpired(stored)) {
+                return null;
+            }
+            promote(key, stored, seq); // to the hot set
+        } else if (overflow != null) {
+            long seq = invalidationSeq(key);
+            stored = overflowTier.take(overflow, key);
+            if (stored == null || isExpired(stored)) {
+                return null;
+            }
+            promote(key, stored, seq); // back from disk
+        }
+        return read(stored);
+    }
+
+    private static Object read(Object stored) {
+        if (stored instanceof TimedValue) {
+            TimedValue tv = (TimedValue) stored;
+            tv.accessed = System.currentTimeMillis(); // racy, but only a hint for trimming
+            return tv.value;
+        }
+        return stored;
+    }
+
+    /**
+     * Put a value read from a lower tier into the hot set, unless the key has
+     * been invalidated since it was read. Invalidation increments the count
+     * before removing the key, so if it isnt seen here it will remove what
+     * was just put
+     */
+    private void promote(Object key, Object v, long seq) {
+        cache.put(key, v);
+        if (invalidationSeq(key) != seq) {
+            cache.asMap().remove(key, v);
+        }
+    }
+
+    private long invalidationSeq(Object key) {
+        int h = key.hashCode();
+        return keyInvalidations.get((h ^ (h >>> 16)) & (INVALIDATION_STRIPES - 1)) + allInvalidations.get();
+    }
+
+    void put(Object key, Object value) {
+        Object stored = timed ? new TimedValue(value, expiry.expiresAt(System.currentTimeMillis())) : value;
+        cache.put(key, stored);
+        if (offHeap != null) {
+            offHeapTier.write(offHeap, key, stored);
+        }
+        if (overflow != null) {
+            overflow.invalidate(key); // any demoted copy is now superseded
+        }
+    }
+
+    /**
+     * Look up the current value without promoting it between tiers, and
+     * without counting a hit or miss in the guava stats. Entries which have
+     * been demoted to disk are not seen
+     *
+     * @param key
+     * @return
+     */
+    Object peek(Object key) {
+        Object stored = cache.asMap().get(key);
+        if (stored == null && offHeap != null) {
+            stored = offHeapTier.read(offHeap, key);
+        }
+        if (stored == null || isExpired(stored)) {
+            return null;
+        }
+        return unwrap(stored);
+    }
+
+    /**
+     * Put the value, unless there is already a value for the key. Used when
+     * restoring a snapshot, where anything loaded since startup is fresher
+     *
+     * @param key
+     * @param value
+     */
+    void restore(Object key, Object value) {
+        if (getIfPresent(key) == null) {
+            put(key, value);
+        }
+    }
+
+    /**
+     * Visit every entry in every tier. Entries in the off heap and overflow
+     * tiers are deserialized, and any which cant be read are skipped
+     *
+     * @param consumer
+     */
+    void forEachEntry(BiConsumer<Object, Object> consumer) {
+        cache.asMap().forEach((key, stored) -> {
+            if (!isExpired(stored)) {
+                consumer.accept(key, unwrap(stored));
+            }
+        });
+        forEachSerialized(offHeapTier, offHeap, consumer);
+        forEachSerialized(overflowTier, overflow, consumer);
+    }
+
+    private void forEachSerialized(OffHeapTier tier, Cache<Object, OffHeapSlabPool.Ref> index, BiConsumer<Object, Object> consumer) {
+        if (index == null) {
+            return;
+        }
+        for (Object key : index.asMap().keySet()) {
+            if (cache.asMap().containsKey(key)) {
+                continue; // already visited in the hot set
+            }
+            Object stored = tier.read(index, key);
+            if (stored != null && !isExpired(stored)) {
+                consumer.accept(key, unwrap(stored));
+            }
+        }
+    }
+
+    void invalidate(Object key) {
+        int h = key.hashCode();
+        keyInvalidations.incrementAndGet((h ^ (h >>> 16)) & (INVALIDATION_STRIPES - 1));
+        if (recentlyInvalidated != null) {
+            recentlyInvalidated.put(key, Boolean.TRUE);
+        }
+        cache.invalidate(key);
+        if (offHeap != null) {
+            offHeap.invalidate(key);
+        }
+        if (overflow != null) {
+            overflow.invalidate(key);
+        }
+    }
+
+    void invalidateAll() {
+        lastInvalidateAll = System.currentTimeMillis();
+        allInvalidations.incrementAndGet();
+        cache.invalidateAll();
+        if (offHeap != null) {
+            offHeap.invalidateAll();
+        }
+        if (overflow != null) {
+            overflow.invalidateAll();
+        }
+    }
+
+    void touch() {
+        lastAccessed = System.currentTimeMillis();
+    }
+
+    long getLastAccessed() {
+        return lastAccessed;
+    }
+
+    /**
+     * Number of entries, on and off heap
+     *
+     * @return
+     */
+    long size() {
+        if (offHeap != null) {
+            return offHeap.size();
+        }
+        return cache.size();
+    }
+
+    /**
+     * Number of entries demoted to the disk overflow tier
+     *
+     * @return
+     */
+    long diskSize() {
+        if (overflow != null) {
+            return overflow.size();
+        }
+        return 0;
+    }
+
+    /**
+     * Number of entries held on the heap
+     *
+     * @return
+     */
+    long heapSize() {
+        return cache.size();
+    }
+
+    CacheStats stats() {
+        return cache.stats();
+    }
+
+    /**
+     * New entries turned away by an admission policy, for tinylfu caches
+     *
+     * @return
+     */
+    long rejectionCount() {
+        if (cache instanceof TinyLfuCache) {
+            return ((TinyLfuCache) cache).rejectionCount();
+        }
+        if (cache instanceof LongKeyedCache) {
+            return ((LongKeyedCache) cache).rejectionCount();
+        }
+        return 0;
+    }
+
+    /**
+     * Only includes entries in the hot set for off heap partitions
+     *
+     * @return
+     */
+    Map<Object, Object> asMap() {
+        if (!timed) {
+            return cache.asMap();
+        }
+        return Maps.transformValues(Maps.filterValues(cache.asMap(), (stored) -> !isExpired(stored)), CachePartition::unwrap);
+    }
+
+    /**
+     * Return the hits and requests since the last call, as a 2 element array
+     * of {hits, requests}. Only called from the governor, which is single
+     * threaded
+     *
+     * @return
+     */
+    long[] takeRecentHits() {
+        CacheStats st = cache.stats();
+        long hits = st.hitCount() - lastHitCount;
+        long requests = st.requestCount() - lastRequestCount;
+        lastHitCount = st.hitCount();
+        lastRequestCount = st.requestCount();
+        return new long[]{hits, requests};
+    }
+
+    /**
+     * Remove on heap entries until there are no more than the given number,
+     * choosing the entries the cache's own policy would evict. Our own caches
+     * evict by CLOCK. Guava doesnt expose its LRU order, so for guava caches
+     * the least recently read entries are removed, by the access time in
+     * their TimedValue. Entries removed are demoted to the overflow tier, as
+     * they would be if evicted
+     *
+     * @param maxEntries
+     * @return - number of entries removed
+     */
+    int trimTo(long maxEntries) {
+        if (cache instanceof TinyLfuCache) {
+            return ((TinyLfuCache) cache).trimTo(maxEntries);
+        }
+        if (cache instanceof LongKeyedCache) {
+            return ((LongKeyedCache) cache).trimTo(maxEntries);
+        }
+        long excess = cache.size() - maxEntries;
+        if (excess <= 0) {
+            return 0;
+        }
+        List<Map.Entry<Object, Object>> entries = new ArrayList<>(cache.asMap().entrySet());
+        entries.sort(Comparator.comparingLong((Map.Entry<Object, Object> e) -> lastAccessed(e.getValue())));
+        int removed = 0;
+        for (int i = 0; i < excess && i < entries.size(); i++) {
+            Map.Entry<Object, Object> e = entries.get(i);
+            if (cache.asMap().remove(e.getKey(), e.getValue())) {
+                removed++;
+                if (overflow != null) {
+                    demote(e.getKey(), e.getValue());
+                }
+            }
+        }
+        return removed;
+    }
+
+    private static long lastAccessed(Object stored) {
+        return stored instanceof TimedValue ? ((TimedValue) stored).accessed : 0;
+    }
+
+    private static boolean isExpired(Object stored) {
+        return stored instanceof TimedValue && ((TimedValue) stored).expiresAt < System.currentTimeMillis();
+    }
+
+    /**
+     * The cached value, given what is stored in a partition's cache
+     *
+     * @param stored
+     * @return
+     */
+    static Object unwrap(Object stored) {
+        if (stored instanceof TimedValue) {
+            return ((TimedValue) stored).value;
+        }
+        return stored;
+    }
+
+    /**
+     * A value along with when it expires. Serialized into the off heap and
+     * overflow tiers with the value, so the expiry survives demotion and
+     * promotion. The last access time is only used on the heap
+     */
+    static final class TimedValue implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final Object value;
+        final long expiresAt;
+        transient long accessed;
+
+        TimedValue(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.accessed = System.currentTimeMillis();
+        }
+    }
+}
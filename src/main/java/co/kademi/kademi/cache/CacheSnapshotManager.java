@@ -0,0 +1,487 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import co.kademi.kademi.cache.channel.InvalidateItemMessage;
+import co.kademi.kademi.cache.channel.SnapshotSyncReply;
+import co.kademi.kademi.cache.channel.SnapshotSyncRequest;
+import co.kademi.kademi.channel.Channel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.lang.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves the contents of the entity, collection and natural id regions to a
+ * local file when the region factory stops, and reloads them in the background
+ * when it starts, so a restarted node doesnt send its full load to the
+ * database.
+ *
+ * Query and timestamp regions are not saved, because query results can only
+ * be trusted alongside the timestamps they were validated against.
+ *
+ * Entries which might be stale are not restored:
+ *
+ * - a region is skipped if the snapshot is older than the region's TTL, since
+ * every entry in it would have expired
+ *
+ * - on restore the node asks its peers, with a SnapshotSyncRequest, for the
+ * invalidations they made since the snapshot was taken. Keys invalidated while
+ * the restore is running are skipped, and invalidations arriving after it has
+ * finished are applied to the restored entries as normal.
+ *
+ * - the restored regions are only kept if every peer connected when the
+ * restore started sends a complete reply in time. If there are no peers, eg
+ * the whole cluster was restarted or we havent connected yet, if any peer's
+ * history doesnt go back far enough, or if a reply is lost, then the restored
+ * regions are flushed. Without a channel there are no peers to have made
+ * changes, so the snapshot is trusted
+ *
+ * Guava doesnt expose write times, so restored entries get a fresh TTL
+ *
+ * @author brad
+ */
+public class CacheSnapshotManager {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheSnapshotManager.class);
+
+    private static final int MAGIC = 0x4b534e50; // KSNP
+    private static final int VERSION = 2;
+    private static final long REGIONS_SETTLE_MS = 2000;
+    private static final long REGIONS_MAX_WAIT_MS = 60000;
+    private static final long SYNC_REPLY_TIMEOUT_MS = 30000;
+
+    private final File file;
+    private final Map<String, KademiCacheRegion> mapOfRegions;
+    private final Channel channel;
+    private final Set<List<Object>> tombstones = ConcurrentHashMap.newKeySet();
+    private final Set<String> flushedRegions = ConcurrentHashMap.newKeySet();
+    private final Set<List<Object>> flushedPartitions = ConcurrentHashMap.newKeySet();
+    private final Set<String> restoredRegions = ConcurrentHashMap.newKeySet();
+    private final Set<String> awaitingPeers = new HashSet<>(); // peers we havent had a last reply from, guarded by itself
+    private String syncFailure; // why the restored regions cant be trusted, guarded by awaitingPeers
+    private boolean syncSettled; // true once the restore has decided whether to keep what it restored, guarded by awaitingPeers
+    private final AtomicLong entriesRead = new AtomicLong();
+    private final AtomicLong entriesRestored = new AtomicLong();
+    private final AtomicLong entriesSkipped = new AtomicLong();
+    private volatile String status = "idle";
+    private volatile boolean restoring;
+    private volatile UUID syncRequestId;
+    private volatile long restoreStarted;
+    private volatile long restoreFinished;
+    private volatile long lastSaveMillis;
+    private volatile long lastSaveEntries;
+
+    public CacheSnapshotManager(File file, Map<String, KademiCacheRegion> mapOfRegions, Channel channel) {
+        this.file = file;
+        this.mapOfRegions = mapOfRegions;
+        this.channel = channel;
+    }
+
+    /**
+     * Write all snapshotable regions to the snapshot file. Writes to a temp
+     * file then moves it into place, so a crash while saving leaves the old
+     * snapshot (or none) rather than a truncated one
+     */
+    public void save() {
+        long tm = System.currentTimeMillis();
+        long count = 0;
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        try {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp))))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(tm);
+                for (KademiCacheRegion r : mapOfRegions.values()) {
+                    if (!isSnapshotable(r)) {
+                        continue;
+                    }
+                    out.writeBoolean(true);
+                    out.writeUTF(r.getName());
+                    count += writeRegion(r, out);
+                }
+                out.writeBoolean(false);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            lastSaveMillis = System.currentTimeMillis() - tm;
+            lastSaveEntries = count;
+            log.info("save: wrote {} entries to {} in {}ms", count, file.getAbsolutePath(), lastSaveMillis);
+        } catch (IOException ex) {
+            log.error("save: could not write cache snapshot to " + file.getAbsolutePath(), ex);
+            tmp.delete();
+        }
+    }
+
+    private long writeRegion(KademiCacheRegion r, DataOutputStream out) throws IOException {
+        long[] count = new long[1];
+        for (CachePartition p : r.getCache().allPartitions()) {
+            out.writeBoolean(true);
+            writeBytes(out, p.id == null ? null : SerializationUtils.serialize(p.id));
+            IOException[] err = new IOException[1];
+            p.forEachEntry((key, value) -> {
+                if (err[0] != null || !(key instanceof Serializable) || !(value instanceof Serializable)) {
+                    return;
+                }
+                try {
+                    byte[] keyData = SerializationUtils.serialize((Serializable) key);
+                    byte[] data = SerializationUtils.serialize((Serializable) value);
+                    out.writeBoolean(true);
+                    writeBytes(out, keyData);
+                    writeBytes(out, data);
+                    count[0]++;
+                } catch (IOException ex) {
+                    err[0] = ex;
+                } catch (Exception ex) {
+                    log.debug("save: could not serialize entry {} in region {}: {}", key, r.getName(), ex.toString());
+                }
+            });
+            if (err[0] != null) {
+                throw err[0];
+            }
+            out.writeBoolean(false);
+        }
+        out.writeBoolean(false);
+        return count[0];
+    }
+
+    /**
+     * Start loading the snapshot on a background thread. Hibernate builds the
+     * regions after the factory has started, so this first waits for the set
+     * of regions to stop growing
+     */
+    public void restoreInBackground() {
+        if (!file.exists()) {
+            status = "no snapshot";
+            return;
+        }
+        restoring = true;
+        status = "waiting for regions";
+        Thread th = new Thread(this::restore, "KademiCacheSnapshotRestore");
+        th.setDaemon(true);
+        th.start();
+    }
+
+    private void restore() {
+        restoreStarted = System.currentTimeMillis();
+        try {
+            waitForRegions();
+            status = "restoring";
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    log.warn("restore: unrecognised snapshot file {}", file.getAbsolutePath());
+                    status = "unrecognised";
+                    return;
+                }
+                long snapshotTime = in.readLong();
+                requestSync(snapshotTime);
+                long age = System.currentTimeMillis() - snapshotTime;
+                while (in.readBoolean()) {
+                    String regionName = in.readUTF();
+                    KademiCacheRegion r = mapOfRegions.get(regionName);
+                    // no point restoring more if a peer has already told us we cant keep it
+                    boolean skip = r == null || age >= r.getTtlMins() * 60000L || getSyncFailure() != null;
+                    if (!skip) {
+                        restoredRegions.add(regionName);
+                    }
+                    readRegion(in, skip ? null : r);
+                }
+            }
+            String failure = awaitSync();
+            if (failure != null) {
+                flushRestored(failure);
+            } else {
+                status = "restored";
+            }
+            log.info("restore: restored {} entries, skipped {}, in {}ms, status={}", entriesRestored.get(), entriesSkipped.get(), System.currentTimeMillis() - restoreStarted, status);
+        } catch (IOException | InterruptedException ex) {
+            log.error("restore: could not read cache snapshot " + file.getAbsolutePath(), ex);
+            settleSync();
+            flushRestored("failed: " + ex.getMessage());
+        } finally {
+            restoring = false;
+            restoreFinished = System.currentTimeMillis();
+            tombstones.clear();
+            flushedRegions.clear();
+            flushedPartitions.clear();
+            file.delete(); // only good for one restart
+        }
+    }
+
+    /**
+     * Ask every connected peer for the invalidations since the snapshot was
+     * taken. If there are none then nobody can vouch for the snapshot
+     *
+     * @param snapshotTime
+     */
+    private void requestSync(long snapshotTime) {
+        syncRequestId = UUID.randomUUID();
+        if (channel == null) {
+            return;
+        }
+        String memberId = channel.getMemberId();
+        Collection<String> peers = channel.getMemberIds();
+        synchronized (awaitingPeers) {
+            if (memberId == null || peers.isEmpty()) {
+                syncFailure = "no peers connected";
+                return;
+            }
+            awaitingPeers.addAll(peers);
+        }
+        log.info("requestSync: asking peers {} for invalidations since {}", peers, snapshotTime);
+        channel.sendNotification(new SnapshotSyncRequest(syncRequestId, snapshotTime, memberId));
+    }
+
+    /**
+     * Wait for the last reply from every peer we asked
+     *
+     * @return - null if all peers have replied with complete histories, or
+     * the reason we cant trust the snapshot
+     * @throws InterruptedException
+     */
+    private String awaitSync() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SYNC_REPLY_TIMEOUT_MS;
+        synchronized (awaitingPeers) {
+            try {
+                while (syncFailure == null && !awaitingPeers.isEmpty()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        syncFailure = "no reply from " + awaitingPeers;
+                        break;
+                    }
+                    awaitingPeers.wait(remaining);
+                }
+                return syncFailure;
+            } finally {
+                syncSettled = true;
+            }
+        }
+    }
+
+    private void settleSync() {
+        synchronized (awaitingPeers) {
+            syncSettled = true;
+        }
+    }
+
+    private String getSyncFailure() {
+        synchronized (awaitingPeers) {
+            return syncFailure;
+        }
+    }
+
+    private void flushRestored(String reason) {
+        log.warn("flushRestored: flushing restored regions {}: {}", restoredRegions, reason);
+        for (String regionName : restoredRegions) {
+            KademiCacheRegion r = mapOfRegions.get(regionName);
+            if (r != null) {
+                r.removeAll();
+            }
+        }
+        status = "flushed, " + reason;
+    }
+
+    private void readRegion(DataInputStream in, KademiCacheRegion r) throws IOException {
+        while (in.readBoolean()) {
+            byte[] partData = readBytes(in);
+            Serializable partitionId = partData == null ? null : (Serializable) SerializationUtils.deserialize(partData);
+            while (in.readBoolean()) {
+                byte[] keyData = readBytes(in);
+                byte[] data = readBytes(in);
+                entriesRead.incrementAndGet();
+                if (r == null) {
+                    entriesSkipped.incrementAndGet();
+                    continue;
+                }
+                Object key = null;
+                try {
+                    key = SerializationUtils.deserialize(keyData);
+                    if (isInvalidated(r.getName(), (Serializable) key, partitionId)) {
+                        entriesSkipped.incrementAndGet();
+                        continue;
+                    }
+                    Object value = SerializationUtils.deserialize(data);
+                    r.getCache().restore(partitionId, key, value);
+                    entriesRestored.incrementAndGet();
+                } catch (Exception ex) {
+                    log.debug("restore: could not deserialize entry {} in region {}: {}", key, r.getName(), ex.toString());
+                    entriesSkipped.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private boolean isInvalidated(String regionName, Serializable key, Serializable partitionId) {
+        if (flushedRegions.contains(regionName)) {
+            return true;
+        }
+        if (!flushedPartitions.isEmpty() && (flushedPartitions.contains(Arrays.asList(regionName, partitionId)) || flushedPartitions.contains(Arrays.asList(null, partitionId)))) {
+            return true;
+        }
+        if (tombstones.isEmpty()) {
+            return false;
+        }
+        // a null partition means the key was invalidated in all partitions
+        return tombstones.contains(tombstone(regionName, key, partitionId)) || tombstones.contains(tombstone(regionName, key, null));
+    }
+
+    private void waitForRegions() throws InterruptedException {
+        long started = System.currentTimeMillis();
+        int lastCount = -1;
+        long lastChange = started;
+        while (System.currentTimeMillis() - started < REGIONS_MAX_WAIT_MS) {
+            int count = mapOfRegions.size();
+            long now = System.currentTimeMillis();
+            if (count != lastCount) {
+                lastCount = count;
+                lastChange = now;
+            } else if (count > 0 && now - lastChange >= REGIONS_SETTLE_MS) {
+                return;
+            }
+            Thread.sleep(200);
+        }
+    }
+
+    /**
+     * Called by the InvalidationManager for every invalidation, local or from
+     * a peer
+     *
+     * @param cacheName
+     * @param key
+     * @param partitionId
+     */
+    void onInvalidation(String cacheName, Serializable key, Serializable partitionId) {
+        if (restoring && cacheName != null && key != null) {
+            tombstones.add(tombstone(cacheName, key, partitionId));
+        }
+    }
+
+    /**
+     * Called when a whole region has been flushed
+     *
+     * @param cacheName
+     */
+    void onRegionFlushed(String cacheName) {
+        if (restoring && cacheName != null) {
+            flushedRegions.add(cacheName);
+        }
+    }
+
+    /**
+     * Called when a partition has been flushed from a region, or from all
+     * regions if cacheName is null
+     *
+     * @param cacheName
+     * @param partitionId
+     */
+    void onPartitionFlushed(String cacheName, Serializable partitionId) {
+        if (restoring) {
+            flushedPartitions.add(Arrays.asList(cacheName, partitionId));
+        }
+    }
+
+    /**
+     * A peer has sent some of the invalidations we missed. Apply them, and if
+     * the peer's history was incomplete the restored regions must be flushed,
+     * either by the restore when it finishes or now if it already has
+     *
+     * @param reply
+     * @param imgr
+     */
+    void onSyncReply(SnapshotSyncReply reply, InvalidationManager imgr) {
+        if (syncRequestId == null || !syncRequestId.equals(reply.getRequestId())) {
+            return; // not for us
+        }
+        log.info("onSyncReply: {}", reply);
+        imgr.onInvalidateItems(reply.getItems());
+        String flushNow = null;
+        synchronized (awaitingPeers) {
+            if (!reply.isComplete() && syncFailure == null) {
+                syncFailure = "history of peer " + reply.getMemberId() + " is incomplete";
+                if (syncSettled) {
+                    flushNow = syncFailure;
+                }
+            }
+            if (reply.isLast()) {
+                awaitingPeers.remove(reply.getMemberId());
+            }
+            awaitingPeers.notifyAll();
+        }
+        if (flushNow != null) {
+            flushRestored(flushNow);
+        }
+    }
+
+    public Map<String, Object> getInfo() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("file", file.getAbsolutePath());
+        map.put("status", status);
+        map.put("entriesRead", entriesRead.get());
+        map.put("entriesRestored", entriesRestored.get());
+        map.put("entriesSkipped", entriesSkipped.get());
+        if (restoreStarted > 0) {
+            long end = restoreFinished > 0 ? restoreFinished : System.currentTimeMillis();
+            map.put("timeToWarmMillis", end - restoreStarted);
+        }
+        map.put("lastSaveMillis", lastSaveMillis);
+        map.put("lastSaveEntries", lastSaveEntries);
+        return map;
+    }
+
+    private static boolean isSnapshotable(KademiCacheRegion r) {
+        return !(r instanceof KademiQueryResultsRegion) && !(r instanceof KademiTimestampsRegion);
+    }
+
+    /**
+     * Entity keys are written to the snapshot as a LongKeyedCache iterates
+     * them, but are invalidated as hibernate CacheKeys, so both are compared
+     * in the iterated form
+     */
+    private static List<Object> tombstone(String cacheName, Serializable key, Serializable partitionId) {
+        return Arrays.asList(cacheName, partitionId, LongKeyedCache.iterationKey(key));
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] data) throws IOException {
+        if (data == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) {
+            return null;
+        }
+        byte[] data = new byte[len];
+        in.readFully(data);
+        return data;
+    }
+}
@@ -0,0 +1,160 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Estimates the retained heap size of cache entries for a region.
+ *
+ * Measuring every entry would be far too expensive, so a sample of values
+ * (the first few, then one in every sampleRate) is serialized and the sizes
+ * are averaged. Collections, ie query results, are averaged per element so
+ * that a 200 row result weighs 200 times as much as a 1 row result. Single
+ * values, ie disassembled entity state in a CacheEntry, are averaged as a
+ * whole.
+ *
+ * Serialized form is more compact than the heap form, because of object
+ * headers, references and padding, so serialized sizes are scaled up by
+ * RETAINED_SIZE_FACTOR.
+ *
+ * @author brad
+ */
+class EntrySizeEstimator {
+
+    private static final Logger log = LoggerFactory.getLogger(EntrySizeEstimator.class);
+
+    private static final double RETAINED_SIZE_FACTOR = 2.0;
+    private static final int ALWAYS_SAMPLE_FIRST = 16;
+    private static final int ENTRY_OVERHEAD = 64; // guava entry, references, key wrapper
+    private static final int COLLECTION_OVERHEAD = 48;
+    private static final long DECAY_AFTER = 10000; // halve the sample counts so the averages follow changes in the data
+
+    private final String regionName;
+    private final int sampleRate;
+    private final int defaultEntryBytes;
+    private final AtomicLong puts = new AtomicLong();
+    private final Average scalarBytes = new Average();
+    private final Average elementBytes = new Average();
+    private final Average entryBytes = new Average();
+
+    EntrySizeEstimator(String regionName, int sampleRate, int defaultEntryBytes) {
+        this.regionName = regionName;
+        this.sampleRate = Math.max(1, sampleRate);
+        this.defaultEntryBytes = defaultEntryBytes;
+    }
+
+    /**
+     * Estimate the retained size of the given entry, possibly sampling it to
+     * improve the estimate.
+     *
+     * @param key
+     * @param value
+     * @return - estimated bytes, always at least 1
+     */
+    int weigh(Object key, Object value) {
+        long n = puts.incrementAndGet();
+        boolean sampled = n <= ALWAYS_SAMPLE_FIRST || n % sampleRate == 0;
+        if (sampled) {
+            sample(value);
+        }
+        long bytes = ENTRY_OVERHEAD + keyBytes(key) + valueBytes(value);
+        if (sampled) {
+            entryBytes.add(bytes);
+        }
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes));
+    }
+
+    /**
+     * The average estimated size of an entry, including its key. If nothing
+     * has been sampled yet this is the configured default
+     *
+     * @return
+     */
+    long averageEntryBytes() {
+        long avg = entryBytes.get();
+        if (avg <= 0) {
+            return defaultEntryBytes;
+        }
+        return avg;
+    }
+
+    long getSamples() {
+        return scalarBytes.count.get() + elementBytes.count.get();
+    }
+
+    private long keyBytes(Object key) {
+        if (key instanceof String) {
+            return 40 + ((String) key).length() * 2;
+        }
+        // a hibernate CacheKey, which is shared with the session, plus its id
+        return 64;
+    }
+
+    private long valueBytes(Object value) {
+        if (value instanceof Collection) {
+            int size = ((Collection) value).size();
+            long perElement = elementBytes.get();
+            if (perElement <= 0) {
+                perElement = defaultEntryBytes / 4;
+            }
+            return COLLECTION_OVERHEAD + size * perElement;
+        }
+        long avg = scalarBytes.get();
+        if (avg <= 0) {
+            return defaultEntryBytes;
+        }
+        return avg;
+    }
+
+    private void sample(Object value) {
+        if (!(value instanceof Serializable)) {
+            return;
+        }
+        long serialized;
+        try {
+            serialized = SerializationUtils.serialize((Serializable) value).length;
+        } catch (Exception e) {
+            log.debug("sample: could not serialize value in region {}: {}", regionName, e.toString());
+            return;
+        }
+        long retained = (long) (serialized * RETAINED_SIZE_FACTOR);
+        if (value instanceof Collection) {
+            int size = ((Collection) value).size();
+            if (size > 0) {
+                elementBytes.add(Math.max(1, (retained - COLLECTION_OVERHEAD) / size));
+            }
+        } else {
+            scalarBytes.add(retained);
+        }
+    }
+
+    private static class Average {
+
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong count = new AtomicLong();
+
+        void add(long v) {
+            total.addAndGet(v);
+            if (count.incrementAndGet() > DECAY_AFTER) {
+                // Not atomic with respect to other adds, but close enough for an estimate
+                total.set(total.get() / 2);
+                count.set(count.get() / 2);
+            }
+        }
+
+        long get() {
+            long c = count.get();
+            if (c == 0) {
+                return 0;
+            }
+            return total.get() / c;
+        }
+    }
+}
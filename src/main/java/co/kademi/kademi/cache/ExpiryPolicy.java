@@ -0,0 +1,122 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How entries in a region expire: a time to live after being written, an
+ * optional idle time after which an entry which hasnt been read expires, and
+ * a random jitter on the time to live.
+ *
+ * The jitter spreads out expiry of entries loaded together, eg after a
+ * deploy, so they dont all expire and get reloaded at once. Our own caches
+ * (LongKeyedCache, TinyLfuCache) jitter each entry. Guava caches only have a
+ * single TTL, so partitions backed by guava store each value with its own
+ * jittered expiry (see CachePartition.TimedValue) and the guava TTL is just
+ * the longest an entry could live
+ *
+ * @author brad
+ */
+class ExpiryPolicy {
+
+    private final long ttlMillis;
+    private final long idleMillis;
+    private final int jitterPercent;
+
+    /**
+     *
+     * @param ttlMillis - time to live after being written
+     * @param idleMillis - time to live after being last read, or 0 for no
+     * idle expiry
+     * @param jitterPercent - the TTL is randomly varied by up to this
+     * percentage either way
+     */
+    ExpiryPolicy(long ttlMillis, long idleMillis, int jitterPercent) {
+        this.ttlMillis = ttlMillis;
+        this.idleMillis = idleMillis;
+        this.jitterPercent = jitterPercent;
+    }
+
+    static ExpiryPolicy ofSeconds(int seconds) {
+        return new ExpiryPolicy(TimeUnit.SECONDS.toMillis(seconds), 0, 0);
+    }
+
+    /**
+     * The time an entry written now should expire, with jitter applied
+     *
+     * @param now
+     * @return
+     */
+    long expiresAt(long now) {
+        return now + jitteredTtl();
+    }
+
+    boolean isExpired(long expiresAt, long lastAccessed, long now) {
+        return now > expiresAt || (idleMillis > 0 && now - lastAccessed > idleMillis);
+    }
+
+    boolean hasIdleExpiry() {
+        return idleMillis > 0;
+    }
+
+    boolean hasJitter() {
+        return jitterPercent > 0 && ttlMillis > 0;
+    }
+
+    private long jitteredTtl() {
+        if (jitterPercent <= 0 || ttlMillis <= 0) {
+            return ttlMillis;
+        }
+        long range = ttlMillis * jitterPercent / 100;
+        return ttlMillis + ThreadLocalRandom.current().nextLong(-range, range + 1);
+    }
+
+    /**
+     * Apply to a guava cache builder. The jitter is applied once, so the
+     * whole cache gets the same TTL
+     *
+     * @param b
+     * @return
+     */
+    CacheBuilder<Object, Object> applyTo(CacheBuilder<Object, Object> b) {
+        return applyTo(b, jitteredTtl());
+    }
+
+    /**
+     * Apply to a guava cache builder whose values carry their own jittered
+     * expiry, so the guava TTL is the longest TTL the jitter can give
+     *
+     * @param b
+     * @return
+     */
+    CacheBuilder<Object, Object> applyMaxTo(CacheBuilder<Object, Object> b) {
+        long range = hasJitter() ? ttlMillis * jitterPercent / 100 : 0;
+        return applyTo(b, ttlMillis + range);
+    }
+
+    private CacheBuilder<Object, Object> applyTo(CacheBuilder<Object, Object> b, long ttl) {
+        b.expireAfterWrite(ttl, TimeUnit.MILLISECONDS);
+        if (idleMillis > 0) {
+            b.expireAfterAccess(idleMillis, TimeUnit.MILLISECONDS);
+        }
+        return b;
+    }
+
+    /**
+     * TTL without jitter, for the off heap and overflow indexes
+     *
+     * @return
+     */
+    int getTtlSeconds() {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(ttlMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "ttl=" + ttlMillis + "ms idle=" + idleMillis + "ms jitter=" + jitterPercent + "%";
+    }
+}
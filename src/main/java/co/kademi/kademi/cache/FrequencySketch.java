@@ -0,0 +1,103 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+/**
+ * A TinyLFU frequency sketch: a count-min sketch of 4 bit counters, four to
+ * a hash, which estimates how often a key has been seen recently. Counters
+ * are halved after every 10 x maxEntries increments, so old popularity fades.
+ *
+ * The counters are packed 16 to a long. Updates arent atomic, so concurrent
+ * increments can be lost, which just makes the estimate a little low.
+ *
+ * Used by the tinylfu caches to decide whether a new entry is worth evicting
+ * an existing one for, so a scan of keys which are only seen once cant flush
+ * out the hot set
+ *
+ * @author brad
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+
+    private final long[] table;
+    private final int tableMask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int maxEntries) {
+        int n = Math.max(1, maxEntries);
+        int size = n <= 1 ? 1 : Integer.highestOneBit(n - 1) << 1; // next power of 2
+        this.table = new long[Math.max(8, size)];
+        this.tableMask = table.length - 1;
+        this.sampleSize = 10 * n;
+    }
+
+    /**
+     * The estimated number of recent occurrences of the hash, from 0 to 15
+     *
+     * @param hashCode
+     * @return
+     */
+    int frequency(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < 4; i++) {
+            int index = indexOf(hash, i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    void increment(int hashCode) {
+        int hash = spread(hashCode);
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            added |= incrementAt(indexOf(hash, i), start + i);
+        }
+        if (added && ++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(int i, int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        long v = table[i];
+        if ((v & mask) != mask) {
+            table[i] = v + (1L << offset);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halve every counter
+     */
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions = (additions >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hybrid logical clock, used for hibernate's cache timestamps so they can
+ * be compared across the cluster.
+ *
+ * Timestamps are packed into a long as millis * TICKS_PER_MILLI plus a
+ * logical counter. Each timestamp issued is greater than the last one issued
+ * or received from a peer, and stays close to physical time. So an update
+ * made after seeing a peer's update is always ordered after it, even if this
+ * server's clock is behind.
+ *
+ * Remote timestamps too far ahead of our physical clock are not adopted,
+ * so one server with a bad clock cant drag the whole cluster into the future
+ *
+ * @author brad
+ */
+class HybridLogicalClock {
+
+    private static final Logger log = LoggerFactory.getLogger(HybridLogicalClock.class);
+
+    static final long TICKS_PER_MILLI = 1000;
+
+    private final long maxDriftTicks;
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     *
+     * @param maxDriftMillis - how far ahead of our clock a peer's timestamp
+     * may be and still be adopted
+     */
+    HybridLogicalClock(long maxDriftMillis) {
+        this.maxDriftTicks = maxDriftMillis * TICKS_PER_MILLI;
+    }
+
+    HybridLogicalClock() {
+        this(TimeUnit.MINUTES.toMillis(1));
+    }
+
+    /**
+     * Issue a new timestamp
+     *
+     * @return
+     */
+    long now() {
+        long pt = physicalTicks();
+        return last.updateAndGet(l -> Math.max(l + 1, pt));
+    }
+
+    /**
+     * Merge a timestamp received from a peer, so timestamps issued from now
+     * on are after it
+     *
+     * @param remote
+     */
+    void update(long remote) {
+        long pt = physicalTicks();
+        if (remote - pt > maxDriftTicks) {
+            log.warn("update: ignoring remote timestamp {}ms ahead of local clock", toMillis(remote - pt));
+            return;
+        }
+        last.updateAndGet(l -> Math.max(l, remote));
+    }
+
+    private static long physicalTicks() {
+        return System.currentTimeMillis() * TICKS_PER_MILLI;
+    }
+
+    /**
+     * The physical time of a timestamp, for comparing with
+     * System.currentTimeMillis()
+     *
+     * @param ts
+     * @return
+     */
+    static long toMillis(long ts) {
+        return ts / TICKS_PER_MILLI;
+    }
+
+    static long toTicks(long millis) {
+        return millis * TICKS_PER_MILLI;
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import co.kademi.kademi.cache.channel.InvalidateAllMessage;
+import co.kademi.kademi.cache.channel.InvalidateBatchMessage;
+import co.kademi.kademi.cache.channel.InvalidateItemMessage;
+import co.kademi.kademi.cache.channel.InvalidatePartitionMessage;
+import co.kademi.kademi.cache.channel.SoftLockMessage;
+import co.kademi.kademi.cache.channel.TimestampUpdateMessage;
+import co.kademi.kademi.channel.MessageCollapser;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Shrinks the messages queued for a slow or disconnected peer.
+ *
+ * Item invalidations are replaced by flushing their partitions, in every
+ * region, or by flushing whole regions for items in the default partition.
+ * If that would still be too many partitions, every region is flushed.
+ * Timestamp updates only need their latest value for each key. Soft locks
+ * are counted on the peer, since concurrent transactions can each lock the
+ * same key, so the locks and unlocks for each key are summed and only the net
+ * count is sent. Anything else is kept as is, in order
+ *
+ * Flushing more than was invalidated is always safe, the peer just reloads
+ * from the database
+ *
+ * @author brad
+ */
+class InvalidationCollapser implements MessageCollapser {
+
+    private static final int MAX_PARTITION_FLUSHES = 100;
+
+    private final Map<String, KademiCacheRegion> mapOfRegions;
+
+    InvalidationCollapser(Map<String, KademiCacheRegion> mapOfRegions) {
+        this.mapOfRegions = mapOfRegions;
+    }
+
+    @Override
+    public List<Serializable> collapse(List<Serializable> messages) {
+        Set<String> regionFlushes = new LinkedHashSet<>();
+        Set<Serializable> partitionFlushes = new LinkedHashSet<>();
+        Set<List<Object>> regionPartitionFlushes = new LinkedHashSet<>(); // cache name and partition
+        Map<List<Object>, Serializable> latest = new LinkedHashMap<>();
+        Map<List<Object>, Integer> lockCounts = new LinkedHashMap<>(); // cache name and key
+        List<Serializable> others = new ArrayList<>();
+        for (Serializable m : messages) {
+            if (m instanceof InvalidateBatchMessage) {
+                for (InvalidateItemMessage iim : ((InvalidateBatchMessage) m).getItems()) {
+                    addItem(iim, regionFlushes, partitionFlushes);
+                }
+            } else if (m instanceof InvalidateItemMessage) {
+                addItem((InvalidateItemMessage) m, regionFlushes, partitionFlushes);
+            } else if (m instanceof InvalidatePartitionMessage) {
+                partitionFlushes.add(((InvalidatePartitionMessage) m).getPartitionId());
+            } else if (m instanceof InvalidateAllMessage) {
+                InvalidateAllMessage iam = (InvalidateAllMessage) m;
+                if (iam.getPartitionId() == null) {
+                    regionFlushes.add(iam.getCacheName());
+                } else {
+                    regionPartitionFlushes.add(Arrays.asList(iam.getCacheName(), iam.getPartitionId()));
+                }
+            } else if (m instanceof TimestampUpdateMessage) {
+                TimestampUpdateMessage tum = (TimestampUpdateMessage) m;
+                putLatest(latest, Arrays.asList("ts", tum.getCacheName(), tum.getPartitionId(), tum.getSpace()), m);
+            } else if (m instanceof SoftLockMessage) {
+                SoftLockMessage slm = (SoftLockMessage) m;
+                List<Object> key = Arrays.asList(slm.getCacheName(), slm.getKey());
+                Integer count = lockCounts.remove(key); // so it moves to the end
+                lockCounts.put(key, (count == null ? 0 : count) + (slm.isLocked() ? 1 : -1));
+            } else {
+                others.add(m);
+            }
+        }
+        if (partitionFlushes.size() > MAX_PARTITION_FLUSHES) {
+            for (KademiCacheRegion r : mapOfRegions.values()) {
+                if (!(r instanceof KademiTimestampsRegion)) {
+                    regionFlushes.add(r.getName());
+                }
+            }
+            partitionFlushes = Collections.emptySet();
+        }
+
+        List<Serializable> list = new ArrayList<>();
+        for (String cacheName : regionFlushes) {
+            list.add(new InvalidateAllMessage(cacheName));
+        }
+        for (Serializable partitionId : partitionFlushes) {
+            list.add(new InvalidatePartitionMessage(partitionId));
+        }
+        for (List<Object> rp : regionPartitionFlushes) {
+            String cacheName = (String) rp.get(0);
+            Serializable partitionId = (Serializable) rp.get(1);
+            if (!regionFlushes.contains(cacheName) && !partitionFlushes.contains(partitionId)) {
+                list.add(new InvalidateAllMessage(cacheName, partitionId));
+            }
+        }
+        list.addAll(latest.values());
+        for (Map.Entry<List<Object>, Integer> e : lockCounts.entrySet()) {
+            String cacheName = (String) e.getKey().get(0);
+            Serializable key = (Serializable) e.getKey().get(1);
+            int count = e.getValue();
+            for (int i = 0; i < Math.abs(count); i++) {
+                list.add(new SoftLockMessage(cacheName, key, count > 0));
+            }
+        }
+        list.addAll(others);
+        return list;
+    }
+
+    private void addItem(InvalidateItemMessage iim, Set<String> regionFlushes, Set<Serializable> partitionFlushes) {
+        if (iim.getPartitionId() != null) {
+            partitionFlushes.add(iim.getPartitionId());
+            return;
+        }
+        regionFlushes.add(iim.getCacheName());
+        if (iim.getSpaces() == null || !iim.getSpaces().isEmpty()) {
+            for (KademiCacheRegion r : mapOfRegions.values()) {
+                if (r instanceof KademiQueryResultsRegion) {
+                    regionFlushes.add(r.getName());
+                }
+            }
+        }
+    }
+
+    private void putLatest(Map<List<Object>, Serializable> latest, List<Object> key, Serializable m) {
+        latest.remove(key); // so it moves to the end
+        latest.put(key, m);
+    }
+}
@@ -3,15 +3,28 @@
  */
 package co.kademi.kademi.cache;
 
+import co.kademi.kademi.cache.channel.InvalidateAllMessage;
+import co.kademi.kademi.cache.channel.InvalidateBatchMessage;
 import co.kademi.kademi.cache.channel.InvalidateItemMessage;
+import co.kademi.kademi.cache.channel.InvalidatePartitionMessage;
+import co.kademi.kademi.cache.channel.SnapshotSyncReply;
+import co.kademi.kademi.cache.channel.SnapshotSyncRequest;
 import co.kademi.kademi.channel.Channel;
+import co.kademi.kademi.channel.FrameCodecFactory;
+import co.kademi.kademi.channel.MessageRegistry;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import org.apache.commons.collections.buffer.CircularFifoBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 import org.hibernate.Transaction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -24,11 +37,22 @@ public class InvalidationManager {
 
     private static final Logger log = LoggerFactory.getLogger(InvalidationManager.class);
 
+    /**
+     * Invalidations for a commit are sent in batches of about this many
+     * encoded bytes, well under the channel's frame limit
+     */
+    private static final int MAX_BATCH_BYTES = FrameCodecFactory.MAX_FRAME_BYTES / 4;
+
     private final Channel channel;
     private final ThreadLocal<InvalidationState> tlInvalidationActionsList = new ThreadLocal();
     private final Map<String, KademiCacheRegion> mapOfRegions;
     private final CachePartitionService cachePartitionService;
-    private final CircularFifoBuffer recentInvalidations = new CircularFifoBuffer(1000);
+    private final RecentInvalidations recentInvalidations = new RecentInvalidations(1024);
+    private final List<KademiQueryResultsRegion> queryRegions = new CopyOnWriteArrayList<>();
+    private volatile CacheSnapshotManager snapshotManager;
+    private final HybridLogicalClock clock = new HybridLogicalClock();
+    private final Map<Serializable, Long> partitionGenerations = new ConcurrentHashMap<>();
+    private final AtomicLong generationCounter = new AtomicLong();
 
     public InvalidationManager(Channel channel, CachePartitionService cachePartitionService, Map<String, KademiCacheRegion> mapOfRegions) {
         this.channel = channel;
@@ -36,6 +60,16 @@ public class InvalidationManager {
         this.cachePartitionService = cachePartitionService;
     }
 
+    /**
+     * Called by the factory when a query results region is built, so we
+     * dont need to look through all regions for them
+     *
+     * @param r
+     */
+    void addQueryRegion(KademiQueryResultsRegion r) {
+        queryRegions.add(r);
+    }
+
     public void clearInvalidationState() {
         tlInvalidationActionsList.remove();
     }
@@ -49,14 +83,6 @@ public class InvalidationManager {
         return list;
     }
 
-    private List<InvalidationAction> enqueuedInvalidations(boolean autocreate) {
-        InvalidationState is = getInvalidationState(autocreate);
-        if( is != null ) {
-            return is.invalidationsList;
-        }
-        return null;
-    }
-
     public void lockCacheForTransaction(Serializable id) {
         InvalidationState is = getInvalidationState(true);
         is.cacheLocked = true;
@@ -72,97 +98,437 @@ public class InvalidationManager {
         return is.cacheLocked;
     }
 
-    public void enqueueInvalidation(String cacheName, KademiCacheRegion.KademiCacheAccessor cacheAccessor, String key, Serializable partitionId) {
+    /**
+     * Whether query results must not be cached by this transaction. Results
+     * read after a write are only safe to cache if the written query spaces
+     * were pre-invalidated, so hibernate's timestamp check rejects them until
+     * the commit. If the cache is locked for the transaction and any of its
+     * writes have unknown spaces then that doesnt hold
+     *
+     * @return
+     */
+    public boolean isQueryCacheLockedForTransaction() {
+        InvalidationState is = getInvalidationState(false);
+        if( is == null || !is.cacheLocked ) {
+            return false;
+        }
+        return !partitionsWithUnknownSpaces(is).isEmpty();
+    }
+
+    public void enqueueInvalidation(String cacheName, KademiCacheRegion.KademiCacheAccessor cacheAccessor, Serializable key, Serializable partitionId) {
         //log.info("enqueueInvalidation: cacheName={} key={}", cacheName, key);
-        // need to syncronize, otherwise can get BufferOverflowException if multiple threads adding
-        synchronized( this ) {
-            recentInvalidations.add(key + " / " + partitionId);
+        InvalidationState is = getInvalidationState(true);
+        if( !is.enqueued.add(Arrays.asList(cacheName, key, partitionId)) ) {
+            return; // already enqueued in this transaction
         }
-        List<InvalidationAction> list = enqueuedInvalidations(true);
-        InvalidationAction ia = new InvalidationAction(cacheName, cacheAccessor, key, partitionId);
-        list.add(ia);
+        recentInvalidations.add(cacheName, key, partitionId);
+        is.invalidationsList.add(new InvalidationAction(cacheName, cacheAccessor, key, partitionId));
 
-        // also need to flush the query cache immediately (as well as after the transaction) to ennsure if the query is called again within the transaction it doesnt get stale results
-        // flush all query caches for this partiton
-        for( KademiCacheRegion r : this.mapOfRegions.values() ) {
-            if( r instanceof KademiQueryResultsRegion ) {
-                KademiQueryResultsRegion qrr = (KademiQueryResultsRegion) r;
-                qrr.getCache().invalidateAll(partitionId);
-            }
+        if( cacheName == null && is.flushedPartitions.add(partitionId) ) {
+            // the cache has been locked, so we dont know what has changed. Flush the query cache immediately (as well as after
+            // the transaction) to ensure if the query is called again within the transaction it doesnt get stale results
+            flushQueryRegions(partitionId);
+        }
+        // otherwise hibernate pre-invalidates the changed query spaces when it flushes, see onQuerySpaceUpdated
+    }
+
+    /**
+     * Called when hibernate updates the timestamp for a query space (ie a
+     * table) in the timestamps region. It pre-invalidates the space when a
+     * transaction flushes changes to it, and invalidates it again when the
+     * transaction completes.
+     *
+     * Query results which read from the space are invalidated now, and
+     * pre-invalidated spaces are recorded so that peers can be told about
+     * them on commit
+     *
+     * @param partitionId
+     * @param space
+     * @param pre - true if this is a pre-invalidation
+     */
+    void onQuerySpaceUpdated(Serializable partitionId, String space, boolean pre) {
+        invalidateQuerySpaces(partitionId, Collections.singleton(space));
+        if( pre ) {
+            InvalidationState is = getInvalidationState(true);
+            is.spaces.computeIfAbsent(partitionId, k -> new HashSet<>()).add(space);
         }
     }
 
     public void onCommit(Transaction tx) {
-        List<InvalidationAction> list = enqueuedInvalidations(false);
+        InvalidationState is = getInvalidationState(false);
         tlInvalidationActionsList.remove();
-        if( list != null && !list.isEmpty() ) {
-            //log.info("onCommit: invalidating {} items", list.size());
-            Set<Serializable> partitionIds = new HashSet<>();
-            for( InvalidationAction ia : list ) {
-                //log.info("onCommit key={} partition={}", ia.key, ia.partitionId);
-                doInvalidation(ia);
-                partitionIds.add(ia.partitionId);
-            }
-
-            // flush all query caches for this partiton
-            for( Serializable pId : partitionIds ) {
-                for( KademiCacheRegion r : this.mapOfRegions.values() ) {
-                    if( r instanceof KademiQueryResultsRegion ) {
-                        KademiQueryResultsRegion qrr = (KademiQueryResultsRegion) r;
-                        qrr.getCache().invalidateAll(pId);
-                    }
-                }
+        if( is == null ) {
+            return;
+        }
+        Set<Serializable> unknownSpaces = partitionsWithUnknownSpaces(is);
+        // invalidations are already unique, see enqueueInvalidation
+        List<InvalidateItemMessage> items = new ArrayList<>();
+        for( InvalidationAction ia : is.invalidationsList ) {
+            //log.info("onCommit key={} partition={}", ia.key, ia.partitionId);
+            doInvalidation(ia);
+            // if the spaces are known they're sent once per partition, below
+            items.add(new InvalidateItemMessage(ia.cacheName, ia.key, ia.partitionId, unknownSpaces.contains(ia.partitionId) ? null : Collections.emptySet()));
+        }
+
+        for( Map.Entry<Serializable, Set<String>> e : is.spaces.entrySet() ) {
+            invalidateQuerySpaces(e.getKey(), e.getValue());
+            if( !unknownSpaces.contains(e.getKey()) ) {
+                items.add(new InvalidateItemMessage(null, null, e.getKey(), new HashSet<>(e.getValue())));
+            }
+        }
+        for( Serializable pId : unknownSpaces ) {
+            flushQueryRegions(pId);
+        }
+        sendInvalidations(items);
+    }
+
+    /**
+     * Send a commit's invalidations to peers, as few messages as possible.
+     * Keys which arent simple values or basic CacheKeys are java serialized,
+     * so a bulk commit can be too big for one frame. Batches are split by the
+     * encoded size of their items, see sizeOf
+     *
+     * @param items
+     */
+    private void sendInvalidations(Collection<InvalidateItemMessage> items) {
+        if( channel == null || items.isEmpty() ) {
+            return;
+        }
+        List<InvalidateItemMessage> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for( InvalidateItemMessage item : items ) {
+            int size;
+            try {
+                size = sizeOf(item);
+            } catch( RuntimeException e ) {
+                // the peer cant be told the key, so flush its region in that partition instead
+                log.warn("sendInvalidations: could not encode key {} in {}, flushing the region instead: {}", item.getKey(), item.getCacheName(), e.toString());
+                channel.sendNotification(new InvalidateAllMessage(item.getCacheName(), item.getPartitionId()));
+                item = new InvalidateItemMessage(item.getCacheName(), null, item.getPartitionId(), item.getSpaces());
+                size = sizeOf(item);
             }
+            if( !batch.isEmpty() && batchBytes + size > MAX_BATCH_BYTES ) {
+                sendBatch(batch);
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(item);
+            batchBytes += size;
+        }
+        sendBatch(batch);
+    }
+
+    /**
+     * The encoded size of an item. Normally the codec can tell without
+     * encoding, but keys which are java serialized have to be encoded to find
+     * out
+     *
+     * @param item
+     * @return
+     * @throws RuntimeException - if the key cant be encoded
+     */
+    private static int sizeOf(InvalidateItemMessage item) {
+        int size = MessageRegistry.estimateSize(item);
+        return size >= 0 ? size : MessageRegistry.encode(item).length;
+    }
+
+    private void sendBatch(List<InvalidateItemMessage> batch) {
+        if( batch.size() == 1 ) {
+            channel.sendNotification(batch.get(0));
+        } else {
+            channel.sendNotification(new InvalidateBatchMessage(batch));
         }
     }
 
     public void onRollback(Transaction tx) {
+        InvalidationState is = getInvalidationState(false);
         tlInvalidationActionsList.remove();
+        if( is == null ) {
+            return;
+        }
+        // query results cached during the transaction might include the rolled back changes
+        for( Map.Entry<Serializable, Set<String>> e : is.spaces.entrySet() ) {
+            invalidateQuerySpaces(e.getKey(), e.getValue());
+        }
+        for( Serializable pId : partitionsWithUnknownSpaces(is) ) {
+            flushQueryRegions(pId);
+        }
+    }
+
+    /**
+     * Partitions with invalidations where we dont know which query spaces
+     * have changed, because the cache was locked or hibernate didnt
+     * pre-invalidate any spaces (eg an explicit evict). All query results in
+     * these partitions must be flushed
+     */
+    private Set<Serializable> partitionsWithUnknownSpaces(InvalidationState is) {
+        Set<Serializable> set = new HashSet<>();
+        for( InvalidationAction ia : is.invalidationsList ) {
+            if( ia.cacheName == null || !is.spaces.containsKey(ia.partitionId) ) {
+                set.add(ia.partitionId);
+            }
+        }
+        return set;
+    }
+
+    private void invalidateQuerySpaces(Serializable partitionId, Collection<String> spaces) {
+        for( KademiQueryResultsRegion qrr : queryRegions ) {
+            qrr.invalidateSpaces(partitionId, spaces);
+        }
+    }
+
+    /**
+     * Flush all query caches for this partition
+     */
+    private void flushQueryRegions(Serializable partitionId) {
+        for( KademiQueryResultsRegion qrr : queryRegions ) {
+            qrr.getCache().invalidateAll(partitionId);
+        }
     }
 
     private void doInvalidation(InvalidationAction ia) {
         if( ia.key != null ) {
             ia.cacheAccessor.invalidate(ia.key, ia.partitionId);
         }
-        if( channel != null ) {
-            InvalidateItemMessage m = new InvalidateItemMessage(ia.cacheName, ia.key, ia.partitionId);
-            channel.sendNotification(m);
+        CacheSnapshotManager sm = snapshotManager;
+        if( sm != null ) {
+            sm.onInvalidation(ia.cacheName, ia.key, ia.partitionId);
         }
     }
 
     public void onInvalidateMessage(InvalidateItemMessage iim) {
-        //lookup cache, and remove item. do not call invalidate otherwise will recur
-        KademiCacheRegion r = null;
-        if( iim.getCacheName() != null ) {
-            r = mapOfRegions.get(iim.getCacheName());
-            if( r == null ) {
-                log.warn("onInvalidateMessage: cache not found: {}", iim.getCacheName());
-            } else {
-                r.getCache().invalidate(iim.getKey(), iim.getPartitionId());
+        onInvalidateItems(Collections.singletonList(iim));
+    }
+
+    public void onInvalidateBatch(InvalidateBatchMessage m) {
+        onInvalidateItems(m.getItems());
+    }
+
+    /**
+     * Apply invalidations from a peer. Query regions are flushed or
+     * invalidated once per partition after all items have been applied
+     *
+     * @param items
+     */
+    void onInvalidateItems(Collection<InvalidateItemMessage> items) {
+        CacheSnapshotManager sm = snapshotManager;
+        Set<Serializable> flushPartitions = new HashSet<>();
+        Map<Serializable, Set<String>> spaces = new HashMap<>();
+        for( InvalidateItemMessage iim : items ) {
+            //lookup cache, and remove item. do not call invalidate otherwise will recur
+            if( sm != null ) {
+                sm.onInvalidation(iim.getCacheName(), iim.getKey(), iim.getPartitionId());
+            }
+            KademiCacheRegion r = null;
+            if( iim.getCacheName() != null ) {
+                r = mapOfRegions.get(iim.getCacheName());
+                if( r == null ) {
+                    log.warn("onInvalidateItems: cache not found: {}", iim.getCacheName());
+                } else if( iim.getKey() != null ) {
+                    r.getCache().invalidate(iim.getKey(), iim.getPartitionId());
+                }
             }
-        }
 
-        if( r == null || r instanceof KademiEntityRegion ) {
-            // need to invalidate all query results caches
-            for( KademiCacheRegion r2 : mapOfRegions.values() ) {
-                if( r2 instanceof KademiQueryResultsRegion ) {
-                    KademiQueryResultsRegion qrr = (KademiQueryResultsRegion) r2;
-                    //log.info("onInvalidateMessage: Invalidate query cache {} in partition {} due to network message", qrr.getName(), iim.getPartitionId());
-                    qrr.getCache().invalidateAll(iim.getPartitionId()); // this will flush the entire cache, for the current partiton only
+            if( r == null || r instanceof KademiEntityRegion ) {
+                if( iim.getSpaces() != null ) {
+                    // just the query results which read the changed tables
+                    if( !iim.getSpaces().isEmpty() ) {
+                        spaces.computeIfAbsent(iim.getPartitionId(), k -> new HashSet<>()).addAll(iim.getSpaces());
+                    }
+                } else {
+                    // dont know what changed, so need to invalidate all query results caches
+                    flushPartitions.add(iim.getPartitionId());
                 }
             }
         }
+
+        for( Serializable pId : flushPartitions ) {
+            //log.info("onInvalidateItems: Invalidate query caches in partition {} due to network message", pId);
+            flushQueryRegions(pId); // this will flush the entire cache, for that partiton only
+        }
+        for( Map.Entry<Serializable, Set<String>> e : spaces.entrySet() ) {
+            if( !flushPartitions.contains(e.getKey()) ) {
+                invalidateQuerySpaces(e.getKey(), e.getValue());
+            }
+        }
     }
 
     public List<String> getRecentInvalidations() {
         List<String> list = new ArrayList<>();
-        list.addAll(recentInvalidations);
+        recentInvalidations.forEach((time, cacheName, key, partitionId) -> list.add(key + " / " + partitionId));
         return list;
     }
 
+    /**
+     * The clock for cache timestamps, shared by all regions
+     *
+     * @return
+     */
+    HybridLogicalClock getClock() {
+        return clock;
+    }
+
+    /**
+     * Drop everything cached for the given partition (ie tenant), in every
+     * region, on this server and all peers. Eg when a tenant is deleted or
+     * restored from a backup.
+     *
+     * This doesnt visit any entries, it just bumps the partition's
+     * generation, so each region replaces its partition with an empty one
+     * when next used. Note this doesnt affect the default partition
+     *
+     * @param partitionId
+     */
+    public void invalidatePartition(Serializable partitionId) {
+        if (partitionId == null) {
+            throw new IllegalArgumentException("partitionId is required");
+        }
+        dropPartition(partitionId);
+        if (channel != null) {
+            channel.sendNotification(new InvalidatePartitionMessage(partitionId));
+        }
+    }
+
+    /**
+     * A peer has invalidated a partition. Do not send anything, otherwise
+     * will recur
+     *
+     * @param m
+     */
+    public void onInvalidatePartitionMessage(InvalidatePartitionMessage m) {
+        log.info("onInvalidatePartitionMessage: {}", m.getPartitionId());
+        dropPartition(m.getPartitionId());
+    }
+
+    private void dropPartition(Serializable partitionId) {
+        pruneGenerations();
+        partitionGenerations.put(partitionId, generationCounter.incrementAndGet());
+        for (KademiCacheRegion r : mapOfRegions.values()) {
+            r.getCache().onPartitionInvalidated();
+        }
+        onRegionFlushed(null, partitionId);
+    }
+
+    /**
+     * Forget the generations of dropped partitions which no region has a
+     * cache for any more, eg because they were reclaimed for being idle, so
+     * the map doesnt grow with every partition ever dropped.
+     *
+     * Generations come from a single counter and are never re-used, so a
+     * partition created under a pruned generation can never look current
+     * again
+     */
+    private void pruneGenerations() {
+        for (Map.Entry<Serializable, Long> e : partitionGenerations.entrySet()) {
+            boolean cached = false;
+            for (KademiCacheRegion r : mapOfRegions.values()) {
+                if (r.getCache().hasPartition(e.getKey())) {
+                    cached = true;
+                    break;
+                }
+            }
+            if (!cached) {
+                partitionGenerations.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Changed each time the partition is invalidated, a cached partition
+     * created under a different generation is stale
+     *
+     * @param partitionId
+     * @return
+     */
+    long getPartitionGeneration(Serializable partitionId) {
+        Long l = partitionGenerations.get(partitionId);
+        return l == null ? 0 : l;
+    }
+
+    void setSnapshotManager(CacheSnapshotManager snapshotManager) {
+        this.snapshotManager = snapshotManager;
+    }
+
+    /**
+     * Called when a region, or a partition of it, is flushed, locally or by
+     * a peer
+     *
+     * @param cacheName - null if the partition was flushed in all regions
+     * @param partitionId - null if the whole region was flushed
+     */
+    void onRegionFlushed(String cacheName, Serializable partitionId) {
+        CacheSnapshotManager sm = snapshotManager;
+        if( sm != null ) {
+            if( partitionId == null ) {
+                sm.onRegionFlushed(cacheName);
+            } else {
+                sm.onPartitionFlushed(cacheName, partitionId);
+            }
+        }
+    }
+
+    /**
+     * A peer is restoring a snapshot and wants to know what we have
+     * invalidated since it was taken. Our history is complete if it goes back
+     * further than the requested time, so not if we have started since then,
+     * eg after the whole cluster was restarted.
+     *
+     * The reply goes to the requesting peer only, split to keep each message
+     * well under the frame limit
+     *
+     * @param req
+     */
+    public void onSnapshotSyncRequest(SnapshotSyncRequest req) {
+        if( channel == null ) {
+            return;
+        }
+        List<InvalidateItemMessage> items = new ArrayList<>();
+        boolean[] complete = {!recentInvalidations.hasWrapped() && recentInvalidations.getStarted() <= req.getSince()};
+        recentInvalidations.forEach((time, cacheName, key, partitionId) -> {
+            if( time < req.getSince() ) {
+                complete[0] = true;
+            } else if( key != null ) {
+                items.add(new InvalidateItemMessage(cacheName, key, partitionId));
+            }
+        });
+        log.info("onSnapshotSyncRequest: replying to {} with {} invalidations, complete={}", req.getMemberId(), items.size(), complete[0]);
+        String memberId = channel.getMemberId();
+        List<InvalidateItemMessage> batch = new ArrayList<>();
+        int batchBytes = 0;
+        for( InvalidateItemMessage item : items ) {
+            int size;
+            try {
+                size = sizeOf(item);
+            } catch( RuntimeException e ) {
+                // the peer cant be told about this key, so cant trust its snapshot
+                log.warn("onSnapshotSyncRequest: could not encode key {} in {}: {}", item.getKey(), item.getCacheName(), e.toString());
+                complete[0] = false;
+                continue;
+            }
+            if( !batch.isEmpty() && batchBytes + size > MAX_BATCH_BYTES ) {
+                channel.sendNotification(req.getMemberId(), new SnapshotSyncReply(req.getRequestId(), memberId, complete[0], false, batch));
+                batch = new ArrayList<>();
+                batchBytes = 0;
+            }
+            batch.add(item);
+            batchBytes += size;
+        }
+        channel.sendNotification(req.getMemberId(), new SnapshotSyncReply(req.getRequestId(), memberId, complete[0], true, batch));
+    }
+
+    public void onSnapshotSyncReply(SnapshotSyncReply reply) {
+        CacheSnapshotManager sm = snapshotManager;
+        if( sm != null ) {
+            sm.onSyncReply(reply, this);
+        }
+    }
+
     private class InvalidationState {
 
         private final List<InvalidationAction> invalidationsList = new ArrayList<>();
+        private final Map<Serializable, Set<String>> spaces = new HashMap<>(); // query spaces pre-invalidated by partition
+        private final Set<List<Object>> enqueued = new HashSet<>(); // cache name, key and partition of each invalidation
+        private final Set<Serializable> flushedPartitions = new HashSet<>(); // query regions already flushed in this transaction
         private boolean cacheLocked;    // if true, do not add to the cache for this transaction/thread
 
     }
@@ -171,10 +537,10 @@ public class InvalidationManager {
 
         private final String cacheName;
         private final KademiCacheRegion.KademiCacheAccessor cacheAccessor;
-        private final String key;
+        private final Serializable key;
         private final Serializable partitionId;
 
-        public InvalidationAction(String cacheName, KademiCacheRegion.KademiCacheAccessor cacheAccessor, String key, Serializable partitionId) {
+        public InvalidationAction(String cacheName, KademiCacheRegion.KademiCacheAccessor cacheAccessor, Serializable key, Serializable partitionId) {
             this.cacheAccessor = cacheAccessor;
             this.key = key;
             this.cacheName = cacheName;
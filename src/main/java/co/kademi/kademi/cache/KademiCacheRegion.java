@@ -1,17 +1,30 @@
 package co.kademi.kademi.cache;
 
 import co.kademi.kademi.cache.channel.InvalidateAllMessage;
+import co.kademi.kademi.cache.channel.SoftLockMessage;
 import co.kademi.kademi.channel.Channel;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.hibernate.cache.CacheException;
 import org.hibernate.cache.spi.CacheDataDescription;
+import org.hibernate.cache.spi.entry.CacheEntry;
+import org.hibernate.cache.spi.access.SoftLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -29,57 +42,346 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
     protected final Properties props;
     protected final CacheDataDescription cdd;
     private final CachePartitionService cachePartitionService;
+    private final CacheMemoryGovernor memoryGovernor;
     private final int ttlMins;
-    private final int timeout;
+    private final ExpiryPolicy expiry;
+    private final ExpiryPolicy defaultPartitionExpiry;
+    private final long lockTimeoutMillis;
     private final int maxSize;
+    private final int partitionIdleMins;
+    private final long maxBytes;
+    private final EntrySizeEstimator sizeEstimator;
+    private final OffHeapTier offHeapTier;
+    private final int offHeapHotSize;
+    private final OffHeapTier overflowTier;
+    private final MappedFileSlabSource overflowSlabSource;
+    private final boolean longKeys;
+    private final boolean tinyLfu;
     private final boolean enableStats;
+    private final PendingPutValidator pendingPuts;
 
-    private final KademiCacheAccessor cacheAccessor = new KademiCacheAccessor();
+    private final KademiCacheAccessor cacheAccessor;
+    private volatile SoftLockManager softLocks;
+    private final LongAdder minimalPutsAvoided = new LongAdder();
+    private final LongAdder stalePutsAvoided = new LongAdder();
 
-    public KademiCacheRegion(String name, Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService) {
+    public KademiCacheRegion(String name, Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService, CacheMemoryGovernor memoryGovernor) {
         this.cacheName = name;
         this.imgr = imgr;
         this.channel = channel;
         this.props = props;
         this.cdd = cdd;
         this.cachePartitionService = cachePartitionService;
+        this.memoryGovernor = memoryGovernor;
 
-        ttlMins = Integer.parseInt(props.getProperty("hibernate.cache.ttl_mins", "5"));
+        this.ttlMins = intProperty("ttl_mins", 5);
+        int jitterPercent = intProperty("ttl_jitter_percent", 10);
+        this.expiry = new ExpiryPolicy(TimeUnit.MINUTES.toMillis(ttlMins), TimeUnit.MINUTES.toMillis(intProperty("idle_mins", 0)), jitterPercent);
+        // the default partition is used before the partition is known, so is kept very short
+        this.defaultPartitionExpiry = new ExpiryPolicy(TimeUnit.SECONDS.toMillis(intProperty("default_partition_ttl_secs", 10)), 0, jitterPercent);
 
-        int i = Integer.parseInt(props.getProperty("hibernate.cache.max_size", "1000"));
-        String k = "hibernate.cache." + name + ".max_size";
-        if (props.containsKey(k)) {
-            i = Integer.parseInt(props.getProperty(k));
+        this.maxSize = intProperty("max_size", 1000);
+        this.partitionIdleMins = intProperty("partition_idle_mins", 30);
+        this.maxBytes = longProperty("max_bytes", 0);
+        this.sizeEstimator = new EntrySizeEstimator(name, intProperty("size_sample_rate", 64), intProperty("avg_entry_bytes", 1024));
+
+        this.offHeapHotSize = intProperty("offheap_hot_size", 100);
+        String k = "hibernate.cache." + name + ".offheap";
+        if (isOffHeapSupported() && memoryGovernor != null && Boolean.parseBoolean(props.getProperty(k, "false"))) {
+            this.offHeapTier = new OffHeapTier(name, "offHeap", memoryGovernor.getOffHeapPool(), maxSize);
+            log.info("Region {} using off heap storage, hot set size={}", name, offHeapHotSize);
+        } else {
+            this.offHeapTier = null;
+        }
+
+        k = "hibernate.cache." + name + ".overflow";
+        MappedFileSlabSource slabSource = null;
+        if (offHeapTier == null && Boolean.parseBoolean(props.getProperty(k, "false"))) {
+            String dir = props.getProperty("hibernate.cache.overflow.dir", System.getProperty("java.io.tmpdir") + File.separator + "kademi-cache");
+            File file = new File(dir, name.replaceAll("[^A-Za-z0-9._-]", "_") + ".overflow");
+            try {
+                slabSource = new MappedFileSlabSource(file);
+            } catch (IOException ex) {
+                log.error("Could not create overflow file for region " + name + ": " + file.getAbsolutePath(), ex);
+            }
+        }
+        this.overflowSlabSource = slabSource;
+        if (slabSource != null) {
+            long overflowMaxBytes = longProperty("overflow_max_bytes", 1024L * 1024 * 1024);
+            OffHeapSlabPool pool = new OffHeapSlabPool(overflowMaxBytes, intProperty("overflow_slab_bytes", 16 * 1024 * 1024), slabSource);
+            this.overflowTier = new OffHeapTier(name, "disk", pool, intProperty("overflow_max_size", maxSize * 10));
+            log.info("Region {} overflowing to disk, file={} max bytes={}", name, slabSource.getFile().getAbsolutePath(), overflowMaxBytes);
+        } else {
+            this.overflowTier = null;
+        }
+
+        String eviction = stringProperty("eviction", "lru");
+        this.tinyLfu = "tinylfu".equalsIgnoreCase(eviction);
+        if (tinyLfu) {
+            log.info("Region {} using tinylfu admission", name);
+        }
+
+        // the primitive table only bounds by entry count, and has no removal listener for demotion
+        this.longKeys = isLongKeySupported() && offHeapTier == null && overflowTier == null && maxBytes <= 0
+                && Boolean.parseBoolean(stringProperty("long_keys", "true"));
+        if (longKeys) {
+            log.info("Region {} using primitive long keyed storage", name);
         }
-        this.maxSize = i;
 
         String sEnableStats = props.getProperty("hibernate.cache.enable_stats", "true");
         this.enableStats = Boolean.parseBoolean(sEnableStats);
 
-        timeout = 600; // not sure of units
+        this.lockTimeoutMillis = TimeUnit.SECONDS.toMillis(intProperty("lock_timeout_secs", 60));
+        if (isPendingPutSupported() && Boolean.parseBoolean(stringProperty("pending_puts", "true"))) {
+            this.pendingPuts = new PendingPutValidator(lockTimeoutMillis);
+        } else {
+            this.pendingPuts = null;
+        }
+
+        this.cacheAccessor = new KademiCacheAccessor();
+    }
+
+    /**
+     * Look for a region specific property, ie hibernate.cache.[region].[name],
+     * and fall back to the global hibernate.cache.[name]
+     *
+     * @param name
+     * @param defaultValue
+     * @return
+     */
+    protected final int intProperty(String name, int defaultValue) {
+        String s = stringProperty(name, null);
+        if (s == null) {
+            return defaultValue;
+        }
+        return Integer.parseInt(s.trim());
+    }
 
+    protected final long longProperty(String name, long defaultValue) {
+        String s = stringProperty(name, null);
+        if (s == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(s.trim());
+    }
+
+    protected final String stringProperty(String name, String defaultValue) {
+        String k = "hibernate.cache." + cacheName + "." + name;
+        if (props.containsKey(k)) {
+            return props.getProperty(k);
+        }
+        return props.getProperty("hibernate.cache." + name, defaultValue);
     }
 
     public void remove(Serializable key) {
-        String sKey = key.toString();
-        cacheAccessor.invalidate(sKey);
+        cacheAccessor.invalidate(key);
     }
 
     protected void invalidate(Object key) {
         // only process invalidations on transaction complete
-        String sKey = key.toString();
         Serializable partitionId = cachePartitionService.currentPartitionKey(null);
-        imgr.enqueueInvalidation(cacheName, cacheAccessor, sKey, partitionId);
+        imgr.enqueueInvalidation(cacheName, cacheAccessor, (Serializable) key, partitionId);
     }
 
+    /**
+     * Flush the current partition from this region, here and on peers, eg for
+     * an HQL bulk update or evictAll. One tenant's bulk update shouldnt empty
+     * the region for all tenants. The whole region is only flushed if there
+     * is no current partition
+     */
     protected void invalidateAll() {
-        cacheAccessor.invalidateAll();
+        Serializable partitionId = currentPartitionId();
+        removeAll(partitionId);
+        sendNotification(new InvalidateAllMessage(cacheName, partitionId));
+    }
+
+    /**
+     * The partition (ie tenant) for the current thread, or null if not known
+     *
+     * @return
+     */
+    protected Serializable currentPartitionId() {
+        return cachePartitionService.currentPartitionKey(null);
+    }
+
+    /**
+     * Use per key soft locks for this region, instead of locking the whole
+     * cache for transactions which write. Called when hibernate builds a
+     * READ_WRITE access strategy
+     */
+    protected final synchronized void enableSoftLocks() {
+        if (softLocks == null) {
+            softLocks = new SoftLockManager(lockTimeoutMillis);
+            log.info("Region {} using soft locks, timeout={}ms", cacheName, lockTimeoutMillis);
+        }
+    }
+
+    protected final boolean isSoftLocking() {
+        return softLocks != null;
+    }
+
+    /**
+     * Get a cached value, unless the key is soft locked by a writing
+     * transaction, here or on a peer
+     *
+     * @param key
+     * @return
+     */
+    protected Object getIfNotLocked(Object key) {
+        SoftLockManager sl = softLocks;
+        if (sl != null && sl.isLocked(key)) {
+            return null;
+        }
+        return cacheAccessor.getIfPresentForLoad(key);
+    }
+
+    /**
+     * Cache a value loaded from the database, unless the key is locked or
+     * was unlocked after the loading transaction started, in which case the
+     * value might be stale.
+     *
+     * The put is also skipped if it wouldnt change anything: for minimal
+     * puts if there is already a value cached, and for versioned entities if
+     * the cached version is the same or newer, so an older version never
+     * replaces a newer one
+     *
+     * @param key
+     * @param value
+     * @param txTimestamp
+     * @param version - the loaded version, if versioned
+     * @param minimalPut - true to not replace an existing value
+     * @return - true if the value was cached
+     */
+    protected boolean putFromLoadIfWriteable(Object key, Object value, long txTimestamp, Object version, boolean minimalPut) {
+        long txMillis = HybridLogicalClock.toMillis(txTimestamp);
+        SoftLockManager sl = softLocks;
+        if (sl != null && !sl.isWriteable(key, txMillis)) {
+            return false;
+        }
+        boolean versioned = version != null && cdd != null && cdd.isVersioned() && cdd.getVersionComparator() != null;
+        if (minimalPut || versioned) {
+            Object existing = cacheAccessor.peek(key);
+            if (existing != null) {
+                if (versioned && existing instanceof CacheEntry) {
+                    Object cachedVersion = ((CacheEntry) existing).getVersion();
+                    if (cachedVersion != null && compareVersions(cachedVersion, version) >= 0) {
+                        stalePutsAvoided.increment();
+                        return false;
+                    }
+                } else if (minimalPut) {
+                    minimalPutsAvoided.increment();
+                    return false;
+                }
+            }
+        }
+        return cacheAccessor.putFromLoad(key, value, txMillis);
+    }
+
+    /**
+     * Hibernate only gives us a raw comparator, but it is the entity's own
+     * version type so both values are always comparable with it
+     */
+    @SuppressWarnings("unchecked")
+    private int compareVersions(Object cachedVersion, Object version) {
+        return cdd.getVersionComparator().compare(cachedVersion, version);
+    }
+
+    /**
+     * Cache a newly inserted value, unless another transaction has locked
+     * the key in the meantime
+     *
+     * @param key
+     * @param value
+     * @return
+     */
+    protected boolean putIfNotLocked(Object key, Object value) {
+        SoftLockManager sl = softLocks;
+        if (sl != null && sl.isLocked(key)) {
+            return false;
+        }
+        cacheAccessor.put(key, value);
+        return true;
+    }
+
+    protected SoftLock softLockItem(Object key) {
+        SoftLockManager sl = softLocks;
+        if (sl == null) {
+            return new KademiSoftLock();
+        }
+        SoftLock lock = sl.lock(key);
+        sendSoftLockMessage((Serializable) key, true);
+        return lock;
+    }
+
+    protected void softUnlockItem(Object key) {
+        SoftLockManager sl = softLocks;
+        if (sl != null) {
+            sl.unlock(key);
+            sendSoftLockMessage((Serializable) key, false);
+        }
+    }
+
+    protected SoftLock softLockRegion() {
+        SoftLockManager sl = softLocks;
+        if (sl == null) {
+            return new KademiSoftLock();
+        }
+        SoftLock lock = sl.lockRegion();
+        sendSoftLockMessage(null, true);
+        return lock;
+    }
+
+    protected void softUnlockRegion() {
+        SoftLockManager sl = softLocks;
+        if (sl != null) {
+            sl.unlockRegion();
+            sendSoftLockMessage(null, false);
+        }
+    }
+
+    private void sendSoftLockMessage(Serializable key, boolean locked) {
+        sendNotification(new SoftLockMessage(cacheName, key, locked));
+    }
+
+    protected void sendNotification(Serializable msg) {
         if (channel != null) {
-            InvalidateAllMessage m = new InvalidateAllMessage(cacheName);
-            channel.sendNotification(m);
+            channel.sendNotification(msg);
+        }
+    }
+
+    /**
+     * A peer has locked or unlocked a key, or the whole region if the key is
+     * null. Do not send anything, otherwise will recur
+     *
+     * @param m
+     */
+    public void onSoftLockMessage(SoftLockMessage m) {
+        enableSoftLocks();
+        SoftLockManager sl = softLocks;
+        if (m.getKey() == null) {
+            if (m.isLocked()) {
+                sl.lockRegion();
+            } else {
+                sl.unlockRegion();
+            }
+        } else if (m.isLocked()) {
+            sl.lock(m.getKey());
+        } else {
+            sl.unlock(m.getKey());
         }
     }
 
+    /**
+     * Whether puts are dropped for transactions which have called
+     * InvalidationManager.lockCacheForTransaction. Regions with soft locks
+     * only refuse puts for the locked keys instead
+     *
+     * @return
+     */
+    protected boolean isLockedOutForTransaction() {
+        return softLocks == null && imgr.isCacheLockedForTransaction();
+    }
+
     @Override
     public String getName() {
         return cacheName;
@@ -87,7 +389,13 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
 
     @Override
     public void destroy() throws CacheException {
-
+        if (overflowSlabSource != null) {
+            try {
+                overflowSlabSource.close();
+            } catch (IOException ex) {
+                log.warn("destroy: could not close overflow file for region {}: {}", cacheName, ex.toString());
+            }
+        }
     }
 
     @Override
@@ -95,9 +403,15 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
         return cacheAccessor.contains(o);
     }
 
+    /**
+     * Estimated bytes retained by this region's entries, based on sampled
+     * entry sizes
+     *
+     * @return
+     */
     @Override
     public long getSizeInMemory() {
-        return cacheAccessor.getElementCountInMemory();
+        return cacheAccessor.getSizeInMemory();
     }
 
     @Override
@@ -105,9 +419,18 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
         return cacheAccessor.getElementCountInMemory();
     }
 
+    /**
+     * Number of entries in the disk overflow tier, or -1 if there is no
+     * overflow tier for this region
+     *
+     * @return
+     */
     @Override
     public long getElementCountOnDisk() {
-        return -1;
+        if (overflowTier == null) {
+            return -1;
+        }
+        return cacheAccessor.getElementCountOnDisk();
     }
 
     @Override
@@ -115,14 +438,76 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
         return null;
     }
 
+    /**
+     * A hybrid logical clock time, shared by all regions, so timestamps can
+     * be compared across the cluster. See HybridLogicalClock.toMillis
+     *
+     * @return
+     */
     @Override
     public long nextTimestamp() {
-        return System.currentTimeMillis();
+        return imgr.getClock().now();
     }
 
+    /**
+     * How long soft locks last, in the same units as nextTimestamp. Set with
+     * hibernate.cache.[region].lock_timeout_secs
+     *
+     * @return
+     */
     @Override
     public int getTimeout() {
-        return timeout;
+        return (int) Math.min(Integer.MAX_VALUE, HybridLogicalClock.toTicks(lockTimeoutMillis));
+    }
+
+    /**
+     * Whether this type of region may keep its entries off heap, when
+     * enabled with hibernate.cache.[region].offheap=true
+     *
+     * This is called from the constructor, so must not depend on subclass
+     * state
+     *
+     * @return
+     */
+    protected boolean isOffHeapSupported() {
+        return false;
+    }
+
+    /**
+     * Whether this type of region may hold entries in a LongKeyedCache,
+     * unless disabled with hibernate.cache.[region].long_keys=false. Only
+     * makes sense for regions keyed by entity CacheKey's
+     *
+     * This is called from the constructor, so must not depend on subclass
+     * state
+     *
+     * @return
+     */
+    protected boolean isLongKeySupported() {
+        return false;
+    }
+
+    /**
+     * Whether values are put with putFromLoad, so loads should be tracked by
+     * a PendingPutValidator, unless disabled with
+     * hibernate.cache.[region].pending_puts=false
+     *
+     * This is called from the constructor, so must not depend on subclass
+     * state
+     *
+     * @return
+     */
+    protected boolean isPendingPutSupported() {
+        return false;
+    }
+
+    /**
+     * Add region type specific information to getPartitionInfo
+     *
+     * @param map
+     */
+    protected void addInfo(Map<String, Object> map) {
+
     }
 
     public KademiCacheAccessor getCache() {
@@ -130,9 +515,25 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
     }
 
     public void removeAll() {
+        imgr.onRegionFlushed(cacheName, null);
         cacheAccessor.invalidateReallyAll();
     }
 
+    /**
+     * Flush one partition (and the default partition), or everything if
+     * partitionId is null. Doesnt notify peers
+     *
+     * @param partitionId
+     */
+    public void removeAll(Serializable partitionId) {
+        if (partitionId == null) {
+            removeAll();
+            return;
+        }
+        imgr.onRegionFlushed(cacheName, partitionId);
+        cacheAccessor.invalidateAll(partitionId);
+    }
+
     public int getTtlMins() {
         return ttlMins;
     }
@@ -141,32 +542,66 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
         return maxSize;
     }
 
+    public int getPartitionIdleMins() {
+        return partitionIdleMins;
+    }
+
+    /**
+     * If greater then zero each partition is limited to this many estimated
+     * bytes, instead of max_size entries
+     *
+     * @return
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Average estimated bytes per entry. Used by the memory governor when the
+     * global budget is in bytes
+     *
+     * @return
+     */
+    public long getEstimatedEntryBytes() {
+        return sizeEstimator.averageEntryBytes();
+    }
+
     public class KademiCacheAccessor {
 
-        private final Map<Serializable, Cache<String, Object>> mapOfCaches = new HashMap<>();
-        private final Cache<String, Object> defaultCache;
+        /**
+         * How often to look for idle partitions. Sweeps are piggy-backed on
+         * normal cache access, so there is no background thread
+         */
+        private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+        private final ConcurrentHashMap<Serializable, CachePartition> mapOfCaches = new ConcurrentHashMap<>();
+        private final CachePartition defaultPartition;
+        private final AtomicLong partitionsCreated = new AtomicLong();
+        private final AtomicLong partitionsReclaimed = new AtomicLong();
+        private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+        private final long startedTime = System.currentTimeMillis();
 
         public KademiCacheAccessor() {
-            defaultCache = createCache(10); // very short TTL
+            defaultPartition = createPartition(null, defaultPartitionExpiry);
         }
 
         public CacheStats getStats() {
-            CacheStats stats = defaultCache.stats();
-            for( Cache<String, Object> c : mapOfCaches.values()) {
-                CacheStats st = c.stats();
+            CacheStats stats = defaultPartition.stats();
+            for (CachePartition p : mapOfCaches.values()) {
+                CacheStats st = p.stats();
                 stats = stats.plus(st);
             }
             return stats;
         }
 
         public boolean contains(Object o) {
-            Object v = defaultCache.getIfPresent(o);
+            Object v = defaultPartition.getIfPresent(o);
             if (v != null) {
                 return true;
             }
 
-            for (Cache<String, Object> c : mapOfCaches.values()) {
-                v = defaultCache.getIfPresent(o);
+            for (CachePartition p : mapOfCaches.values()) {
+                v = p.getIfPresent(o);
                 if (v != null) {
                     return true;
                 }
@@ -176,25 +611,36 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
         }
 
         public long getSizeInMemory() {
-            long s = defaultCache.size();
-            for (Cache<String, Object> c : mapOfCaches.values()) {
-                s += c.size();
+            long s = defaultPartition.heapSize();
+            for (CachePartition p : mapOfCaches.values()) {
+                s += p.heapSize();
             }
-            return s;
+            return s * sizeEstimator.averageEntryBytes();
         }
 
         public long getElementCountInMemory() {
-            long s = defaultCache.size();
-            for (Cache<String, Object> c : mapOfCaches.values()) {
-                s += c.size();
+            long s = defaultPartition.size();
+            for (CachePartition p : mapOfCaches.values()) {
+                s += p.size();
+            }
+            return s;
+        }
+
+        public long getElementCountOnDisk() {
+            long s = defaultPartition.diskSize();
+            for (CachePartition p : mapOfCaches.values()) {
+                s += p.diskSize();
             }
             return s;
         }
 
         void invalidateReallyAll() {
-            defaultCache.invalidateAll();
-            for (Cache<String, Object> c : mapOfCaches.values()) {
-                c.invalidateAll();
+            if (pendingPuts != null) {
+                pendingPuts.invalidateAll();
+            }
+            defaultPartition.invalidateAll();
+            for (CachePartition p : mapOfCaches.values()) {
+                p.invalidateAll();
             }
         }
 
@@ -203,96 +649,397 @@ public abstract class KademiCacheRegion implements org.hibernate.cache.spi.Regio
             return cachePartitionService.currentPartitionKey(null);
         }
 
-        private Cache<String, Object> cache() {
+        private CachePartition partition() {
             Serializable id = getPartitionId();
-            return cache(id);
+            return partition(id);
         }
 
-        private Cache<String, Object> cache(Serializable id) {
+        private CachePartition partition(Serializable id) {
             if (id != null) {
-                Cache<String, Object> cache = mapOfCaches.get(id);
-                if (cache == null) {
-                    cache = createCache(ttlMins * 60);
-                    mapOfCaches.put(id, cache);
+                CachePartition p = mapOfCaches.get(id);
+                if (p == null || !isCurrent(p)) {
+                    p = mapOfCaches.compute(id, (k, old) -> {
+                        if (old != null && isCurrent(old)) {
+                            return old; // another thread replaced it
+                        }
+                        if (old != null && (offHeapTier != null || overflowTier != null)) {
+                            old.invalidateAll(); // release its slabs
+                        }
+                        return createPartition(k);
+                    });
                 }
-                return cache;
+                p.touch();
+                sweepIfDue();
+                return p;
             } else {
-                return defaultCache;
+                return defaultPartition;
+            }
+        }
+
+        /**
+         * Find the partition without creating it, or touching its last access
+         * time. Returns null if there is no such partition
+         *
+         * @param id
+         * @return
+         */
+        private CachePartition existingPartition(Serializable id) {
+            if (id == null) {
+                return defaultPartition;
             }
+            return mapOfCaches.get(id);
         }
 
-        private Cache<String, Object> createCache(int seconds) {
-            return CacheBuilder.newBuilder()
-                    .maximumSize(maxSize)
-                    .recordStats()
-                    .expireAfterWrite(seconds, TimeUnit.SECONDS)
-                    .build();
+        /**
+         * False if the whole partition has been invalidated since this was
+         * created, so it must be replaced with an empty one
+         *
+         * @param p
+         * @return
+         */
+        private boolean isCurrent(CachePartition p) {
+            return p.generation == imgr.getPartitionGeneration(p.id);
         }
 
-        public Object getIfPresent(String key) {
-            return cache().getIfPresent(key);
+        /**
+         * Whether there is a cache for the partition, current or stale
+         *
+         * @param id
+         * @return
+         */
+        boolean hasPartition(Serializable id) {
+            return mapOfCaches.containsKey(id);
+        }
+
+        Collection<CachePartition> partitions() {
+            return mapOfCaches.values();
+        }
+
+        /**
+         * All partitions, including the default partition
+         *
+         * @return
+         */
+        List<CachePartition> allPartitions() {
+            List<CachePartition> list = new ArrayList<>();
+            list.add(defaultPartition);
+            for (CachePartition p : mapOfCaches.values()) {
+                if (isCurrent(p)) {
+                    list.add(p);
+                }
+            }
+            return list;
         }
 
-        public void put(String key, Object value) {
-            if (imgr.isCacheLockedForTransaction()) {
+        /**
+         * Add an entry from a snapshot to the given partition, unless it
+         * already has a value
+         *
+         * @param partitionId
+         * @param key
+         * @param value
+         */
+        void restore(Serializable partitionId, Object key, Object value) {
+            partition(partitionId).restore(key, value);
+        }
+
+        private CachePartition createPartition(Serializable id) {
+            partitionsCreated.incrementAndGet();
+            return createPartition(id, expiry);
+        }
+
+        private CachePartition createPartition(Serializable id, ExpiryPolicy expiry) {
+            long generation = id == null ? 0 : imgr.getPartitionGeneration(id);
+            return new CachePartition(id, generation, (listener) -> createCache(expiry, listener), offHeapTier, overflowTier, expiry);
+        }
+
+        /**
+         * Void loads in progress, because a whole partition has been dropped
+         */
+        void onPartitionInvalidated() {
+            if (pendingPuts != null) {
+                pendingPuts.invalidateAll();
+            }
+        }
+
+        private Cache<Object, Object> createCache(ExpiryPolicy expiry, RemovalListener<Object, Object> listener) {
+            if (longKeys && listener == null) {
+                return new LongKeyedCache(maxSize, expiry, tinyLfu);
+            }
+            if (tinyLfu && maxBytes <= 0) {
+                return new TinyLfuCache(offHeapTier != null ? offHeapHotSize : maxSize, expiry, listener);
+            }
+            // values are jittered individually, see CachePartition.TimedValue
+            CacheBuilder<Object, Object> b = expiry.applyMaxTo(CacheBuilder.newBuilder()
+                    .recordStats());
+            if (offHeapTier != null) {
+                // just the hot set, everything else is off heap
+                b.maximumSize(offHeapHotSize);
+            } else if (maxBytes > 0) {
+                CacheBuilder<Object, Object> wb = b.maximumWeight(maxBytes)
+                        .weigher((Object key, Object value) -> sizeEstimator.weigh(key, CachePartition.unwrap(value)));
+                if (listener != null) {
+                    wb.removalListener(listener);
+                }
+                return wb.build();
+            } else {
+                b.maximumSize(maxSize);
+            }
+            if (listener != null) {
+                return b.removalListener(listener).build();
+            }
+            return b.build();
+        }
+
+        /**
+         * Run a sweep for idle partitions if one hasnt been done recently. Only
+         * one thread will do the sweep, others return immediately
+         */
+        private void sweepIfDue() {
+            if (partitionIdleMins <= 0) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            long last = lastSweep.get();
+            if (now - last < SWEEP_INTERVAL_MS) {
+                return;
+            }
+            if (!lastSweep.compareAndSet(last, now)) {
+                return; // another thread got it
+            }
+            reclaimIdlePartitions(now);
+        }
+
+        /**
+         * Remove whole partitions which have not been accessed within the idle
+         * time. The partition's cache is discarded, so any concurrent puts to
+         * it are lost, which is harmless - its just a cache miss later
+         *
+         * @param now
+         * @return - the number of partitions removed
+         */
+        int reclaimIdlePartitions(long now) {
+            long idleMillis = TimeUnit.MINUTES.toMillis(partitionIdleMins);
+            int count = 0;
+            Iterator<CachePartition> it = mapOfCaches.values().iterator();
+            while (it.hasNext()) {
+                CachePartition p = it.next();
+                if (now - p.getLastAccessed() > idleMillis) {
+                    if (mapOfCaches.remove(p.id, p)) {
+                        p.invalidateAll();
+                        count++;
+                    }
+                }
+            }
+            if (count > 0) {
+                partitionsReclaimed.addAndGet(count);
+                log.info("reclaimIdlePartitions: region={} reclaimed={} remaining={}", cacheName, count, mapOfCaches.size());
+            }
+            return count;
+        }
+
+        public Object getIfPresent(Object key) {
+            return partition().getIfPresent(key);
+        }
+
+        /**
+         * Get the value, and if it isnt cached register a pending put for
+         * this thread, which is voided if the key is invalidated before the
+         * loaded value is put
+         *
+         * @param key
+         * @return
+         */
+        Object getIfPresentForLoad(Object key) {
+            Serializable id = getPartitionId();
+            Object v = partition(id).getIfPresent(key);
+            if (v == null && pendingPuts != null) {
+                pendingPuts.registerPendingPut(id, key);
+            }
+            return v;
+        }
+
+        /**
+         * Put a value loaded from the database, unless the key has been
+         * invalidated since this thread missed the cache (or since the
+         * transaction started, if it didnt get from the cache first)
+         *
+         * @param key
+         * @param value
+         * @param txTimestamp
+         * @return - true if the value was cached
+         */
+        boolean putFromLoad(Object key, Object value, long txTimestamp) {
+            if (pendingPuts == null) {
+                put(key, value);
+                return true;
+            }
+            Serializable id = getPartitionId();
+            long seq = pendingPuts.acceptPutFromLoad(id, key, txTimestamp);
+            if (seq == PendingPutValidator.REJECTED) {
+                return false;
+            }
+            put(key, value);
+            if (pendingPuts.wasInvalidatedSince(id, key, seq)) {
+                // invalidated while we were putting
+                partition(id).invalidate(key);
+                defaultPartition.invalidate(key);
+                return false;
+            }
+            return true;
+        }
+
+        public void put(Object key, Object value) {
+            if (isLockedOutForTransaction()) {
                 // https://github.com/Kademi/kademi-dev/issues/8465
                 //log.info("put: cache is locked for this transaction, cannot add");
                 return;
             }
             Serializable id = getPartitionId();
             //log.info("put: partition={} key={} value={}", id, key, value);
-            cache().put(key, value);
+            partition(id).put(key, value);
+            if (maxBytes <= 0 || offHeapTier != null) {
+                // when weighing by bytes the weigher does this
+                sizeEstimator.weigh(key, value);
+            }
+        }
+
+        /**
+         * Check if the key is cached in the given partition, without
+         * creating the partition or counting a hit
+         *
+         * @param partitionId
+         * @param key
+         * @return
+         */
+        boolean isCached(Serializable partitionId, Object key) {
+            CachePartition p = existingPartition(partitionId);
+            return p != null && p.peek(key) != null;
+        }
+
+        /**
+         * The current value in this partition, without promoting it or
+         * counting it in the stats
+         *
+         * @param key
+         * @return
+         */
+        Object peek(Object key) {
+            return partition().peek(key);
         }
 
         public void invalidate(Serializable key) {
-            cache().invalidate(key);
-            defaultCache.invalidate(key);
+            if (pendingPuts != null) {
+                pendingPuts.invalidateKey(getPartitionId(), key);
+            }
+            partition().invalidate(key);
+            defaultPartition.invalidate(key);
         }
 
         public void invalidate(Serializable key, Serializable partitionId) {
-            Cache<String, Object> c = cache(partitionId);
-            //log.info("invalidate: part={} key={} size before={}", partitionId, key, c.size());
-            c.invalidate(key);
-            //log.info("invalidate: part={} key={} size after={} does contain?={}", partitionId, key, c.size(), c.getIfPresent(key));
-            defaultCache.invalidate(key); // must always invalidate from the default cache, because this is used prior to locating the rootfolder
+            if (pendingPuts != null && key != null) {
+                pendingPuts.invalidateKey(partitionId, key);
+            }
+            CachePartition c = existingPartition(partitionId);
+            if (c != null) {
+                //log.info("invalidate: part={} key={} size before={}", partitionId, key, c.size());
+                c.invalidate(key);
+                //log.info("invalidate: part={} key={} size after={} does contain?={}", partitionId, key, c.size(), c.getIfPresent(key));
+            }
+            defaultPartition.invalidate(key); // must always invalidate from the default cache, because this is used prior to locating the rootfolder
 
             // if partitionId is null, need to invalidate from all partitions
             if (partitionId == null) {
-                for (Serializable otherPartitionId : mapOfCaches.keySet()) {
-                    invalidate(key, otherPartitionId);
+                for (CachePartition p : mapOfCaches.values()) {
+                    p.invalidate(key);
                 }
             }
         }
 
         public void invalidateAll() {
-            cache().invalidateAll();
-            defaultCache.invalidateAll();
+            if (pendingPuts != null) {
+                pendingPuts.invalidateAll();
+            }
+            partition().invalidateAll();
+            defaultPartition.invalidateAll();
         }
 
         public void invalidateAll(Serializable partitionId) {
-            Cache<String, Object> c = cache(partitionId);
-            if (c.size() == 0) {
-                return;
+            CachePartition c = existingPartition(partitionId);
+            if (pendingPuts != null) {
+                pendingPuts.invalidateAll();
             }
-            //log.info("invalidateAll: cache: {} partition: {} current size={}", KademiCacheRegion.this.cacheName, partitionId, c.size());
-            c.invalidateAll();
-            //log.info("invalidateAll: partition: {} after invalidation size={}", partitionId, c.size());
-            defaultCache.invalidateAll();
+            if (c != null && c.size() > 0) {
+                //log.info("invalidateAll: cache: {} partition: {} current size={}", KademiCacheRegion.this.cacheName, partitionId, c.size());
+                c.invalidateAll();
+            }
+            // the default partition can hold entries for any tenant, so always flush it
+            defaultPartition.invalidateAll();
         }
 
         public Map asMap() {
             Map m = new HashMap();
-            m.putAll(defaultCache.asMap());
-            for (Cache<String, Object> c : mapOfCaches.values()) {
-                m.putAll(c.asMap());
+            m.putAll(defaultPartition.asMap());
+            for (CachePartition p : mapOfCaches.values()) {
+                m.putAll(p.asMap());
             }
             return m;
         }
 
         public Map<Serializable, Long> getPartitionCounts() {
             Map<Serializable, Long> map = new HashMap<>();
-            for (Map.Entry<Serializable, Cache<String, Object>> entry : this.mapOfCaches.entrySet()) {
-                map.put(entry.getKey(), entry.getValue().size());
+            for (CachePartition p : this.mapOfCaches.values()) {
+                map.put(p.id, p.size());
+            }
+            return map;
+        }
+
+        /**
+         * Information about the partition table itself, ie how many partitions
+         * there are, how quickly they are being created and how many have been
+         * reclaimed for being idle
+         *
+         * @return
+         */
+        public Map<String, Object> getPartitionInfo() {
+            Map<String, Object> map = new HashMap<>();
+            long created = partitionsCreated.get();
+            long upMins = Math.max(1, TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - startedTime));
+            map.put("partitions", mapOfCaches.size());
+            map.put("partitionsCreated", created);
+            map.put("partitionsCreatedPerMin", created / (double) upMins);
+            map.put("partitionsReclaimed", partitionsReclaimed.get());
+            map.put("partitionIdleMins", partitionIdleMins);
+            map.put("estimatedEntryBytes", sizeEstimator.averageEntryBytes());
+            map.put("longKeys", longKeys);
+            map.put("eviction", tinyLfu ? "tinylfu" : "lru");
+            if (tinyLfu) {
+                long rejections = 0;
+                for (CachePartition p : allPartitions()) {
+                    rejections += p.rejectionCount();
+                }
+                map.put("admissionRejections", rejections);
+            }
+            map.put("expiry", expiry.toString());
+            map.put("defaultPartitionExpiry", defaultPartitionExpiry.toString());
+            map.put("sizeSamples", sizeEstimator.getSamples());
+            map.put("minimalPutsAvoided", minimalPutsAvoided.sum());
+            map.put("stalePutsAvoided", stalePutsAvoided.sum());
+            if (pendingPuts != null) {
+                map.putAll(pendingPuts.getInfo());
+            }
+            SoftLockManager sl = softLocks;
+            if (sl != null) {
+                map.putAll(sl.getInfo());
+            }
+            addInfo(map);
+            if (offHeapTier != null) {
+                map.putAll(offHeapTier.getInfo());
+                map.put("hotSize", offHeapHotSize);
+            }
+            if (overflowTier != null) {
+                map.putAll(overflowTier.getInfo());
+                map.put("diskCount", getElementCountOnDisk());
             }
             return map;
         }
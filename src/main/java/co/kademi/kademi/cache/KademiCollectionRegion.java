@@ -18,13 +18,16 @@ import org.hibernate.cache.spi.access.SoftLock;
  */
 public class KademiCollectionRegion extends KademiCacheRegion implements CollectionRegion {
 
-    public KademiCollectionRegion(String string, Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService) {
-        super(string, channel, props, cdd, imgr, cachePartitionService);
+    public KademiCollectionRegion(String string, Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService, CacheMemoryGovernor memoryGovernor) {
+        super(string, channel, props, cdd, imgr, cachePartitionService, memoryGovernor);
     }
 
 
     @Override
     public CollectionRegionAccessStrategy buildAccessStrategy(AccessType accessType) throws CacheException {
+        if (accessType == AccessType.READ_WRITE) {
+            enableSoftLocks();
+        }
         return new KademiCollectionRegionAccessStrategy();
     }
 
@@ -38,6 +41,16 @@ public class KademiCollectionRegion extends KademiCacheRegion implements Collect
         return cdd;
     }
 
+    @Override
+    protected boolean isPendingPutSupported() {
+        return true;
+    }
+
+    @Override
+    protected boolean isOffHeapSupported() {
+        return true;
+    }
+
     public class KademiCollectionRegionAccessStrategy implements CollectionRegionAccessStrategy {
 
         @Override
@@ -47,40 +60,37 @@ public class KademiCollectionRegion extends KademiCacheRegion implements Collect
 
         @Override
         public Object get(Object key, long txTimestamp) throws CacheException {
-            Object o = getCache().getIfPresent(key.toString());
-            return o;
+            return getIfNotLocked(key);
         }
 
         @Override
         public boolean putFromLoad(Object key, Object value, long txTimestamp, Object version) throws CacheException {
-            getCache().put(key.toString(), value);
-            return true;
+            return putFromLoadIfWriteable(key, value, txTimestamp, version, false);
         }
 
         @Override
         public boolean putFromLoad(Object key, Object value, long txTimestamp, Object version, boolean minimalPutOverride) throws CacheException {
-            getCache().put(key.toString(), value);
-            return true;
+            return putFromLoadIfWriteable(key, value, txTimestamp, version, minimalPutOverride);
         }
 
         @Override
         public SoftLock lockItem(Object key, Object version) throws CacheException {
-            return new KademiSoftLock();
+            return softLockItem(key);
         }
 
         @Override
         public SoftLock lockRegion() throws CacheException {
-            return new KademiSoftLock();
+            return softLockRegion();
         }
 
         @Override
         public void unlockItem(Object key, SoftLock lock) throws CacheException {
-
+            softUnlockItem(key);
         }
 
         @Override
         public void unlockRegion(SoftLock lock) throws CacheException {
-
+            softUnlockRegion();
         }
 
         @Override
@@ -19,14 +19,17 @@ public class KademiEntityRegion extends KademiCacheRegion implements EntityRegio
     
     private final KademiRegionFactory regionFactory;
 
-    public KademiEntityRegion( KademiRegionFactory regionFactory, String string,Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService) {
-        super(string, channel, props, cdd, imgr, cachePartitionService);
+    public KademiEntityRegion( KademiRegionFactory regionFactory, String string,Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService, CacheMemoryGovernor memoryGovernor) {
+        super(string, channel, props, cdd, imgr, cachePartitionService, memoryGovernor);
         this.regionFactory = regionFactory;
     }
 
 
     @Override
     public EntityRegionAccessStrategy buildAccessStrategy(AccessType accessType) throws CacheException {
+        if (accessType == AccessType.READ_WRITE) {
+            enableSoftLocks();
+        }
         return new KademiEntityRegionAccessStrategy(this, props, regionFactory);
 
     }
@@ -41,4 +44,19 @@ public class KademiEntityRegion extends KademiCacheRegion implements EntityRegio
         return cdd;
     }
 
+    @Override
+    protected boolean isPendingPutSupported() {
+        return true;
+    }
+
+    @Override
+    protected boolean isOffHeapSupported() {
+        return true;
+    }
+
+    @Override
+    protected boolean isLongKeySupported() {
+        return true;
+    }
+
 }
@@ -6,7 +6,6 @@ package co.kademi.kademi.cache;
 import java.io.Serializable;
 import java.util.Properties;
 import org.hibernate.cache.CacheException;
-import org.hibernate.cache.spi.CacheKey;
 import org.hibernate.cache.spi.EntityRegion;
 import org.hibernate.cache.spi.access.EntityRegionAccessStrategy;
 import org.hibernate.cache.spi.access.SoftLock;
@@ -39,9 +38,7 @@ public class KademiEntityRegionAccessStrategy implements EntityRegionAccessStrat
 
     @Override
     public boolean afterInsert(Object key, Object value, Object version) throws CacheException {
-        CacheKey ck = (CacheKey) key;
-        entityRegion.getCache().put(ck.toString(), value);
-        return true;
+        return entityRegion.putIfNotLocked(key, value);
     }
 
     @Override
@@ -53,71 +50,66 @@ public class KademiEntityRegionAccessStrategy implements EntityRegionAccessStrat
     @Override
     public boolean afterUpdate(Object key, Object value, Object currentVersion, Object previousVersion, SoftLock lock) throws CacheException {
         entityRegion.invalidate(key);
+        entityRegion.softUnlockItem(key);
         return true;
 
     }
 
     @Override
     public Object get(Object key, long txTimestamp) throws CacheException {
-        CacheKey ck = (CacheKey) key;
-        return entityRegion.getCache().getIfPresent(ck.toString());
+        return entityRegion.getIfNotLocked(key);
     }
 
     @Override
     public boolean putFromLoad(Object key, Object value, long txTimestamp, Object version) throws CacheException {
-        CacheKey ck = (CacheKey) key;
-        entityRegion.getCache().put(ck.toString(), value);
-        return true;
+        return entityRegion.putFromLoadIfWriteable(key, value, txTimestamp, version, false);
     }
 
     @Override
     public boolean putFromLoad(Object key, Object value, long txTimestamp, Object version, boolean minimalPutOverride) throws CacheException {
-        CacheKey ck = (CacheKey) key;
-        entityRegion.getCache().put(ck.toString(), value);
-        return true;
+        return entityRegion.putFromLoadIfWriteable(key, value, txTimestamp, version, minimalPutOverride);
     }
 
     @Override
     public SoftLock lockItem(Object key, Object version) throws CacheException {
-        return new KademiSoftLock();
+        return entityRegion.softLockItem(key);
     }
 
     @Override
     public SoftLock lockRegion() throws CacheException {
-        return new KademiSoftLock();
+        return entityRegion.softLockRegion();
     }
 
     @Override
     public void unlockItem(Object key, SoftLock lock) throws CacheException {
-
+        entityRegion.softUnlockItem(key);
     }
 
     @Override
     public void unlockRegion(SoftLock lock) throws CacheException {
-
+        entityRegion.softUnlockRegion();
     }
 
     @Override
     public void remove(Object key) throws CacheException {
         entityRegion.invalidate(key);
-        entityRegion.getCache().invalidate(key.toString());
+        entityRegion.getCache().invalidate((Serializable) key);
     }
 
     @Override
     public void removeAll() throws CacheException {
-        entityRegion.getCache().invalidateAll();
+        entityRegion.invalidateAll();
     }
 
     @Override
     public void evict(Object key) throws CacheException {
-        CacheKey ck = (CacheKey) key;
-        entityRegion.getCache().invalidate(ck.getKey());
-        entityRegion.invalidate(ck);
+        entityRegion.getCache().invalidate((Serializable) key);
+        entityRegion.invalidate(key);
     }
 
     @Override
     public void evictAll() throws CacheException {
-        entityRegion.getCache().invalidateAll();
+        entityRegion.invalidateAll();
     }
 
 }
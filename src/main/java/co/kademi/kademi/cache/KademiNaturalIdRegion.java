@@ -10,20 +10,27 @@ import org.hibernate.cache.spi.CacheDataDescription;
 import org.hibernate.cache.spi.NaturalIdRegion;
 import org.hibernate.cache.spi.access.AccessType;
 import org.hibernate.cache.spi.access.NaturalIdRegionAccessStrategy;
+import org.hibernate.cache.spi.access.SoftLock;
 
 /**
+ * Caches natural id to id resolution, eg website by hostname. Keys are
+ * hibernate's NaturalIdCacheKey's, which are partitioned and invalidated
+ * across the cluster in the same way as entity keys
  *
  * @author brad
  */
 public class KademiNaturalIdRegion extends KademiCacheRegion implements NaturalIdRegion{
 
-    public KademiNaturalIdRegion(String string, Channel channel,Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService) {
-        super(string, channel, props, cdd, imgr, cachePartitionService);
+    public KademiNaturalIdRegion(String string, Channel channel,Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService, CacheMemoryGovernor memoryGovernor) {
+        super(string, channel, props, cdd, imgr, cachePartitionService, memoryGovernor);
     }
 
     @Override
     public NaturalIdRegionAccessStrategy buildAccessStrategy(AccessType accessType) throws CacheException {
-        throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+        if (accessType == AccessType.READ_WRITE) {
+            enableSoftLocks();
+        }
+        return new KademiNaturalIdRegionAccessStrategy();
     }
 
     @Override
@@ -36,4 +43,94 @@ public class KademiNaturalIdRegion extends KademiCacheRegion implements NaturalI
         return cdd;
     }
 
+    @Override
+    protected boolean isPendingPutSupported() {
+        return true;
+    }
+
+    public class KademiNaturalIdRegionAccessStrategy implements NaturalIdRegionAccessStrategy {
+
+        @Override
+        public NaturalIdRegion getRegion() {
+            return KademiNaturalIdRegion.this;
+        }
+
+        @Override
+        public Object get(Object key, long txTimestamp) throws CacheException {
+            return getIfNotLocked(key);
+        }
+
+        @Override
+        public boolean putFromLoad(Object key, Object value, long txTimestamp, Object version) throws CacheException {
+            return putFromLoadIfWriteable(key, value, txTimestamp, version, false);
+        }
+
+        @Override
+        public boolean putFromLoad(Object key, Object value, long txTimestamp, Object version, boolean minimalPutOverride) throws CacheException {
+            return putFromLoadIfWriteable(key, value, txTimestamp, version, minimalPutOverride);
+        }
+
+        @Override
+        public boolean insert(Object key, Object value) throws CacheException {
+            return false;
+        }
+
+        @Override
+        public boolean afterInsert(Object key, Object value) throws CacheException {
+            return putIfNotLocked(key, value);
+        }
+
+        @Override
+        public boolean update(Object key, Object value) throws CacheException {
+            return false;
+        }
+
+        @Override
+        public boolean afterUpdate(Object key, Object value, SoftLock lock) throws CacheException {
+            invalidate(key);
+            softUnlockItem(key);
+            return true;
+        }
+
+        @Override
+        public SoftLock lockItem(Object key, Object version) throws CacheException {
+            return softLockItem(key);
+        }
+
+        @Override
+        public SoftLock lockRegion() throws CacheException {
+            return softLockRegion();
+        }
+
+        @Override
+        public void unlockItem(Object key, SoftLock lock) throws CacheException {
+            softUnlockItem(key);
+        }
+
+        @Override
+        public void unlockRegion(SoftLock lock) throws CacheException {
+            softUnlockRegion();
+        }
+
+        @Override
+        public void remove(Object key) throws CacheException {
+            invalidate(key);
+        }
+
+        @Override
+        public void removeAll() throws CacheException {
+            invalidateAll();
+        }
+
+        @Override
+        public void evict(Object key) throws CacheException {
+            invalidate(key);
+        }
+
+        @Override
+        public void evictAll() throws CacheException {
+            invalidateAll();
+        }
+    }
+
 }
@@ -0,0 +1,43 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.Serializable;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import org.hibernate.HibernateException;
+import org.hibernate.cache.internal.StandardQueryCache;
+import org.hibernate.cache.spi.QueryKey;
+import org.hibernate.cache.spi.QueryResultsRegion;
+import org.hibernate.cache.spi.UpdateTimestampsCache;
+import org.hibernate.cfg.Settings;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.type.Type;
+
+/**
+ * Hibernate only passes a query's spaces (ie tables, including synchronized
+ * and native query spaces) when getting a result, not when putting it. The
+ * loader always tries to get before it runs the query and puts the result,
+ * so on a miss this tells the region to expect a put of the key, with those
+ * spaces
+ *
+ * @author brad
+ */
+public class KademiQueryCache extends StandardQueryCache {
+
+    public KademiQueryCache(Settings settings, Properties props, UpdateTimestampsCache updateTimestampsCache, String regionName) {
+        super(settings, props, updateTimestampsCache, regionName);
+    }
+
+    @Override
+    public List<?> get(QueryKey key, Type[] returnTypes, boolean isNaturalKeyLookup, Set<Serializable> spaces, SessionImplementor session) throws HibernateException {
+        List<?> result = super.get(key, returnTypes, isNaturalKeyLookup, spaces, session);
+        QueryResultsRegion r = getRegion();
+        if (result == null && r instanceof KademiQueryResultsRegion) {
+            ((KademiQueryResultsRegion) r).expectPut(key, spaces);
+        }
+        return result;
+    }
+}
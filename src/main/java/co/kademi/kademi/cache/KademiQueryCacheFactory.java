@@ -0,0 +1,27 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.util.Properties;
+import org.hibernate.HibernateException;
+import org.hibernate.cache.spi.QueryCache;
+import org.hibernate.cache.spi.QueryCacheFactory;
+import org.hibernate.cache.spi.UpdateTimestampsCache;
+import org.hibernate.cfg.Settings;
+
+/**
+ * Builds KademiQueryCache's, so query results regions know which query
+ * spaces each result depends on. Enable with
+ *
+ * hibernate.cache.query_cache_factory=co.kademi.kademi.cache.KademiQueryCacheFactory
+ *
+ * @author brad
+ */
+public class KademiQueryCacheFactory implements QueryCacheFactory {
+
+    @Override
+    public QueryCache getQueryCache(String regionName, UpdateTimestampsCache updateTimestampsCache, Settings settings, Properties props) throws HibernateException {
+        return new KademiQueryCache(settings, props, updateTimestampsCache, regionName);
+    }
+}
@@ -5,7 +5,11 @@ package co.kademi.kademi.cache;
 
 import co.kademi.kademi.channel.Channel;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import org.hibernate.cache.CacheException;
 import org.hibernate.cache.spi.CacheDataDescription;
 import org.hibernate.cache.spi.QueryKey;
@@ -17,30 +21,98 @@ import org.hibernate.cache.spi.QueryResultsRegion;
  */
 public class KademiQueryResultsRegion extends KademiCacheRegion implements QueryResultsRegion {
 
+    /**
+     * Most threads only have one query in progress at a time, so if this
+     * many puts are expected the earlier ones must have failed
+     */
+    private static final int MAX_EXPECTED_PUTS = 16;
 
-    public KademiQueryResultsRegion(String string,Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService) {
-        super(string, channel, props, cdd, imgr, cachePartitionService);
+    private final QuerySpaceIndex spaceIndex = new QuerySpaceIndex();
+    private final ThreadLocal<Map<Object, Set<Serializable>>> expectedPuts = ThreadLocal.withInitial(HashMap::new);
+
+    public KademiQueryResultsRegion(String string,Channel channel, Properties props, CacheDataDescription cdd, InvalidationManager imgr, CachePartitionService cachePartitionService, CacheMemoryGovernor memoryGovernor) {
+        super(string, channel, props, cdd, imgr, cachePartitionService, memoryGovernor);
     }
 
+    /**
+     * Results are not hidden from transactions which have written. Hibernate
+     * checks each result against the timestamps region, which is
+     * pre-invalidated for the written tables when the session flushes, and
+     * the partition's results are flushed when invalidations are enqueued and
+     * on commit or rollback. Puts are refused instead, see
+     * isLockedOutForTransaction
+     *
+     * @param key
+     * @return
+     * @throws CacheException
+     */
     @Override
     public Object get(Object key) throws CacheException {
-        // If the cache is locked, that means updates have been made, so any query results
-        // in the cache could be invalid
-        if( this.imgr.isCacheLockedForTransaction() ) {
-            return null;
-        }
-        return getCache().getIfPresent(key.toString());
+        return getCache().getIfPresent(key);
     }
 
     @Override
     public void put(Object key, Object value) throws CacheException {
-        getCache().put(key.toString(), value);
+        if (isLockedOutForTransaction()) {
+            return;
+        }
+        Set<Serializable> spaces = expectedPuts.get().remove(key);
+        getCache().put(key, value);
+        spaceIndex.add(currentPartitionId(), key, spaces);
+        spaceIndex.sweepIfDue(getCache()::isCached);
+    }
+
+    /**
+     * Called by KademiQueryCache when this thread has missed the cache, with
+     * the query spaces the result it is about to put will depend on
+     *
+     * @param key
+     * @param spaces
+     */
+    void expectPut(Object key, Set<Serializable> spaces) {
+        Map<Object, Set<Serializable>> map = expectedPuts.get();
+        if (map.size() >= MAX_EXPECTED_PUTS) {
+            map.clear();
+        }
+        map.put(key, spaces);
+    }
+
+    /**
+     * Invalidate results which read from any of the given query spaces
+     *
+     * @param partitionId - or null for all partitions
+     * @param spaces
+     */
+    public void invalidateSpaces(Serializable partitionId, Collection<String> spaces) {
+        Map<Serializable, Set<Object>> removed = spaceIndex.remove(partitionId, spaces);
+        for (Map.Entry<Serializable, Set<Object>> e : removed.entrySet()) {
+            for (Object key : e.getValue()) {
+                getCache().invalidate((Serializable) key, e.getKey());
+            }
+        }
+    }
+
+    @Override
+    protected void addInfo(Map<String, Object> map) {
+        map.putAll(spaceIndex.getInfo());
+    }
+
+    /**
+     * A transaction which has locked the cache, and has written to tables we
+     * dont know, could read its own uncommitted changes in a query which the
+     * timestamps check doesnt catch, so it must not cache results. Lookups
+     * are still allowed
+     *
+     * @return
+     */
+    @Override
+    protected boolean isLockedOutForTransaction() {
+        return imgr.isQueryCacheLockedForTransaction();
     }
 
     @Override
     public void evict(Object key) throws CacheException {
-        QueryKey ck = (QueryKey) key;
-        getCache().invalidate(ck.toString());
+        getCache().invalidate((QueryKey) key);
     }
 
     @Override
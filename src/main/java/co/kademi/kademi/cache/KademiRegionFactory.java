@@ -1,9 +1,16 @@
 package co.kademi.kademi.cache;
 
 import co.kademi.kademi.cache.channel.InvalidateAllMessage;
+import co.kademi.kademi.cache.channel.InvalidatePartitionMessage;
+import co.kademi.kademi.cache.channel.InvalidateBatchMessage;
 import co.kademi.kademi.cache.channel.InvalidateItemMessage;
+import co.kademi.kademi.cache.channel.SoftLockMessage;
+import co.kademi.kademi.cache.channel.TimestampUpdateMessage;
+import co.kademi.kademi.cache.channel.SnapshotSyncReply;
+import co.kademi.kademi.cache.channel.SnapshotSyncRequest;
 import co.kademi.kademi.channel.Channel;
 import co.kademi.kademi.channel.ChannelListener;
+import java.io.File;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.ArrayList;
@@ -41,6 +48,8 @@ public class KademiRegionFactory implements RegionFactory {
     private Channel channel;
     private InvalidationManager imgr;
     private CachePartitionService cachePartitionService;
+    private CacheMemoryGovernor memoryGovernor;
+    private CacheSnapshotManager snapshotManager;
     private Map<String, KademiCacheRegion> mapOfRegions;
 
     public KademiRegionFactory() {
@@ -68,7 +77,21 @@ public class KademiRegionFactory implements RegionFactory {
             cachePartitionService = new DefaultCachePartitionService();
         }
 
+        if (stngs != null && stngs.isQueryCacheEnabled() && !(stngs.getQueryCacheFactory() instanceof KademiQueryCacheFactory)) {
+            log.warn("start: set hibernate.cache.query_cache_factory={} so query results are only invalidated by changes to the tables they read", KademiQueryCacheFactory.class.getName());
+        }
+
         imgr = new InvalidationManager(channel, cachePartitionService, mapOfRegions);
+        channel.setMessageCollapser(new InvalidationCollapser(mapOfRegions));
+        memoryGovernor = new CacheMemoryGovernor(props, mapOfRegions);
+        memoryGovernor.start();
+
+        String snapshotDir = props.getProperty("hibernate.cache.snapshot.dir");
+        if (StringUtils.isNotBlank(snapshotDir)) {
+            File f = new File(snapshotDir, props.getProperty("hibernate.cache.snapshot.name", "l2-cache") + ".snapshot");
+            snapshotManager = new CacheSnapshotManager(f, mapOfRegions, channel);
+            imgr.setSnapshotManager(snapshotManager);
+        }
 
         channel.registerListener(new ChannelListener() {
 
@@ -80,12 +103,34 @@ public class KademiRegionFactory implements RegionFactory {
                         InvalidateItemMessage iim = (InvalidateItemMessage) msg;
                         imgr.onInvalidateMessage(iim);
 
+                    } else if (msg instanceof InvalidateBatchMessage) {
+                        imgr.onInvalidateBatch((InvalidateBatchMessage) msg);
+
                     } else if (msg instanceof InvalidateAllMessage) {
                         InvalidateAllMessage iam = (InvalidateAllMessage) msg;
                         KademiCacheRegion r = mapOfRegions.get(iam.getCacheName());
                         if (r != null) {
-                            r.removeAll();
+                            r.removeAll(iam.getPartitionId());
                         }
+                    } else if (msg instanceof InvalidatePartitionMessage) {
+                        imgr.onInvalidatePartitionMessage((InvalidatePartitionMessage) msg);
+
+                    } else if (msg instanceof TimestampUpdateMessage) {
+                        TimestampUpdateMessage tum = (TimestampUpdateMessage) msg;
+                        KademiCacheRegion r = mapOfRegions.get(tum.getCacheName());
+                        if (r instanceof KademiTimestampsRegion) {
+                            ((KademiTimestampsRegion) r).onTimestampUpdate(tum);
+                        }
+                    } else if (msg instanceof SoftLockMessage) {
+                        SoftLockMessage slm = (SoftLockMessage) msg;
+                        KademiCacheRegion r = mapOfRegions.get(slm.getCacheName());
+                        if (r != null) {
+                            r.onSoftLockMessage(slm);
+                        }
+                    } else if (msg instanceof SnapshotSyncRequest) {
+                        imgr.onSnapshotSyncRequest((SnapshotSyncRequest) msg);
+                    } else if (msg instanceof SnapshotSyncReply) {
+                        imgr.onSnapshotSyncReply((SnapshotSyncReply) msg);
                     } else if (msg instanceof BroadcastMessage) {
                         BroadcastMessage m = (BroadcastMessage) msg;
                         for (BroadcastEventListener2 l : broadcastEventListeners) {
@@ -107,6 +152,10 @@ public class KademiRegionFactory implements RegionFactory {
                 log.info("onConnect: remote={}", remoteAddress);
             }
         });
+
+        if (snapshotManager != null) {
+            snapshotManager.restoreInBackground();
+        }
     }
 
     public Channel getChannel() {
@@ -117,9 +166,25 @@ public class KademiRegionFactory implements RegionFactory {
         return imgr.getRecentInvalidations();
     }
 
+    /**
+     * Saves a snapshot of the cache if hibernate.cache.snapshot.dir is set, so
+     * it can be reloaded on the next start
+     */
     @Override
     public void stop() {
+        if (memoryGovernor != null) {
+            memoryGovernor.stop();
+        }
+        if (snapshotManager != null) {
+            snapshotManager.save();
+        }
+    }
 
+    public Map<String, Object> getSnapshotInfo() {
+        if (snapshotManager == null) {
+            return null;
+        }
+        return snapshotManager.getInfo();
     }
 
     @Override
@@ -134,19 +199,19 @@ public class KademiRegionFactory implements RegionFactory {
 
     @Override
     public long nextTimestamp() {
-        return System.currentTimeMillis();
+        return imgr.getClock().now();
     }
 
     @Override
     public EntityRegion buildEntityRegion(String regionName, Properties prprts, CacheDataDescription cdd) throws CacheException {
-        KademiEntityRegion r = new KademiEntityRegion(this, regionName, channel, prprts, cdd, imgr, cachePartitionService);
+        KademiEntityRegion r = new KademiEntityRegion(this, regionName, channel, prprts, cdd, imgr, cachePartitionService, memoryGovernor);
         mapOfRegions.put(regionName, r);
         return r;
     }
 
     @Override
     public NaturalIdRegion buildNaturalIdRegion(String regionName, Properties prprts, CacheDataDescription cdd) throws CacheException {
-        KademiNaturalIdRegion r = new KademiNaturalIdRegion(regionName, channel, prprts, cdd, imgr, cachePartitionService);
+        KademiNaturalIdRegion r = new KademiNaturalIdRegion(regionName, channel, prprts, cdd, imgr, cachePartitionService, memoryGovernor);
         mapOfRegions.put(regionName, r);
         return r;
     }
@@ -160,21 +225,22 @@ public class KademiRegionFactory implements RegionFactory {
         } else {
             log.info("buildCollectionRegion: create new cache region {}", regionName);
         }
-        KademiCollectionRegion r = new KademiCollectionRegion(regionName, channel, prprts, cdd, imgr, cachePartitionService);
+        KademiCollectionRegion r = new KademiCollectionRegion(regionName, channel, prprts, cdd, imgr, cachePartitionService, memoryGovernor);
         mapOfRegions.put(regionName, r);
         return r;
     }
 
     @Override
     public QueryResultsRegion buildQueryResultsRegion(String regionName, Properties prprts) throws CacheException {
-        KademiQueryResultsRegion r = new KademiQueryResultsRegion(regionName, channel, prprts, null, imgr, cachePartitionService);
+        KademiQueryResultsRegion r = new KademiQueryResultsRegion(regionName, channel, prprts, null, imgr, cachePartitionService, memoryGovernor);
         mapOfRegions.put(regionName, r);
+        imgr.addQueryRegion(r);
         return r;
     }
 
     @Override
     public TimestampsRegion buildTimestampsRegion(String regionName, Properties prprts) throws CacheException {
-        KademiTimestampsRegion r = new KademiTimestampsRegion(regionName, channel, prprts, imgr, cachePartitionService);
+        KademiTimestampsRegion r = new KademiTimestampsRegion(regionName, channel, prprts, imgr, cachePartitionService, memoryGovernor);
         mapOfRegions.put(regionName, r);
         return r;
     }
@@ -197,6 +263,10 @@ public class KademiRegionFactory implements RegionFactory {
         return imgr;
     }
 
+    public CacheMemoryGovernor getMemoryGovernor() {
+        return memoryGovernor;
+    }
+
     private class BroadcastEventListener2 {
 
         private final String topicName;
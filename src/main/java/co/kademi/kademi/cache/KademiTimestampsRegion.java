@@ -3,42 +3,166 @@
  */
 package co.kademi.kademi.cache;
 
+import co.kademi.kademi.cache.channel.TimestampUpdateMessage;
 import co.kademi.kademi.channel.Channel;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.hibernate.cache.CacheException;
 import org.hibernate.cache.spi.TimestampsRegion;
 
 /**
+ * Holds the time each query space (ie table) was last updated, which
+ * hibernate checks before using a cached query result.
+ *
+ * Unlike the other regions, entries are never evicted for size and are
+ * replicated to all peers, so a query result cached on one server is seen
+ * to be stale when a table changes on any server. Timestamps come from the
+ * hybrid logical clock, and updates to the same space are ordered by the
+ * clock time they were made, so peers agree on the latest value.
+ *
+ * A timestamp older than any query result can be is no longer useful, so
+ * entries are removed once older than hibernate.cache.[region].retain_mins
+ * (default 60), which must be longer than the query regions' ttl_mins
  *
  * @author brad
  */
 public class KademiTimestampsRegion extends KademiCacheRegion implements TimestampsRegion{
 
-    public KademiTimestampsRegion(String string, Channel channel, Properties props, InvalidationManager imgr, CachePartitionService cachePartitionService) {
-        super(string, channel, props, null, imgr, cachePartitionService);
-    }
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
 
+    private final ConcurrentHashMap<List<Object>, SpaceTimestamp> timestamps = new ConcurrentHashMap<>();
+    private final long retainMillis;
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    private final LongAdder remoteUpdates = new LongAdder();
+    private final LongAdder remoteUpdatesIgnored = new LongAdder();
 
+    public KademiTimestampsRegion(String string, Channel channel, Properties props, InvalidationManager imgr, CachePartitionService cachePartitionService, CacheMemoryGovernor memoryGovernor) {
+        super(string, channel, props, null, imgr, cachePartitionService, memoryGovernor);
+        this.retainMillis = TimeUnit.MINUTES.toMillis(intProperty("retain_mins", 60));
+    }
 
     @Override
     public Object get(Object key) throws CacheException {
-        return getCache().getIfPresent(key.toString());
+        SpaceTimestamp st = timestamps.get(Arrays.asList(currentPartitionId(), key));
+        return st == null ? null : st.value;
     }
 
     @Override
     public void put(Object key, Object value) throws CacheException {
-        getCache().put(key.toString(), value);
+        if (!(value instanceof Long)) {
+            return;
+        }
+        Serializable partitionId = currentPartitionId();
+        long updatedAt = nextTimestamp();
+        apply(partitionId, key, updatedAt, (Long) value);
+        sendNotification(new TimestampUpdateMessage(cacheName, partitionId, (Serializable) key, updatedAt, (Long) value));
+        if (key instanceof String) {
+            // a pre-invalidation is in the future, for the duration of the writing transaction
+            boolean pre = (Long) value > updatedAt;
+            imgr.onQuerySpaceUpdated(partitionId, (String) key, pre);
+        }
+        sweepIfDue();
+    }
+
+    /**
+     * A peer has updated a timestamp. Do not send anything, otherwise will
+     * recur
+     *
+     * @param m
+     */
+    public void onTimestampUpdate(TimestampUpdateMessage m) {
+        imgr.getClock().update(m.getUpdatedAt());
+        remoteUpdates.increment();
+        if (!apply(m.getPartitionId(), m.getSpace(), m.getUpdatedAt(), m.getValue())) {
+            remoteUpdatesIgnored.increment();
+        }
+    }
+
+    /**
+     *
+     * @return - false if the update was ignored because a later one has
+     * already been applied
+     */
+    private boolean apply(Serializable partitionId, Object space, long updatedAt, long value) {
+        SpaceTimestamp st = new SpaceTimestamp(updatedAt, value);
+        SpaceTimestamp result = timestamps.merge(Arrays.asList(partitionId, space), st, (a, b) -> b.updatedAt > a.updatedAt ? b : a);
+        return result == st;
+    }
+
+    private void sweepIfDue() {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        long oldest = HybridLogicalClock.toTicks(now - retainMillis);
+        timestamps.values().removeIf(st -> st.value < oldest);
     }
 
     @Override
     public void evict(Object key) throws CacheException {
-        invalidate(key);
-        getCache().invalidate(key.toString());
+        timestamps.remove(Arrays.asList(currentPartitionId(), key));
     }
 
     @Override
     public void evictAll() throws CacheException {
-        getCache().invalidateAll();
+        timestamps.clear();
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return get(o) != null;
+    }
+
+    @Override
+    public long getElementCountInMemory() {
+        return timestamps.size();
+    }
+
+    @Override
+    public Map<Object, Long> toMap() {
+        Map<Object, Long> map = new HashMap<>();
+        for (Map.Entry<List<Object>, SpaceTimestamp> e : timestamps.entrySet()) {
+            map.put(e.getKey(), e.getValue().value);
+        }
+        return map;
+    }
+
+    /**
+     * Never drop puts, the pre-invalidations from a writing transaction are
+     * what stop it, and others, using stale query results
+     *
+     * @return
+     */
+    @Override
+    protected boolean isLockedOutForTransaction() {
+        return false;
+    }
+
+    @Override
+    protected void addInfo(Map<String, Object> map) {
+        map.put("timestamps", timestamps.size());
+        map.put("timestampRemoteUpdates", remoteUpdates.sum());
+        map.put("timestampRemoteUpdatesIgnored", remoteUpdatesIgnored.sum());
+        map.put("timestampRetainMins", TimeUnit.MILLISECONDS.toMinutes(retainMillis));
     }
 
+    private static class SpaceTimestamp {
+
+        private final long updatedAt;
+        private final long value;
+
+        SpaceTimestamp(long updatedAt, long value) {
+            this.updatedAt = updatedAt;
+            this.value = value;
+        }
+    }
 }
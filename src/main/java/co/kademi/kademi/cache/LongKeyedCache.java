@@ -0,0 +1,679 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import org.hibernate.cache.spi.CacheKey;
+
+/**
+ * A cache for an entity region whose ids are longs (or ints), which keeps the
+ * ids in primitive open addressing tables rather than holding a CacheKey and
+ * a boxed id per entry.
+ *
+ * The table is split into segments, each guarded by a StampedLock. Reads are
+ * optimistic so a hit takes no lock and allocates nothing, unless the region
+ * has idle expiry, which needs the read lock to record access times. Deletes use
+ * backward shifting, so there are no tombstones. Each segment holds at most
+ * its share of maxEntries, and when full evicts with the CLOCK algorithm,
+ * preferring expired entries. Entries expire according to the region's
+ * ExpiryPolicy, with the jitter applied to each entry.
+ *
+ * Keys which dont fit - ids which arent integral, a different entity name
+ * (eg several entities sharing a region), or a hibernate tenant id - go to a
+ * normal guava cache, so this is always safe to use for an entity region.
+ *
+ * If admission is on then a FrequencySketch decides whether a new entry may
+ * replace the CLOCK victim when the segment is full, as in TinyLfuCache.
+ *
+ * Implements guava's Cache so CachePartition and the memory governor treat
+ * it like any other partition cache. Iteration (asMap) returns EntityId keys,
+ * which this cache also accepts, eg when restoring a snapshot
+ *
+ * @author brad
+ */
+class LongKeyedCache extends AbstractCache<Object, Object> {
+
+    private static final int SEGMENTS = 16;
+    private static final int SEGMENT_SHIFT = 28; // top 4 bits of the hash pick the segment
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxEntries;
+    private final ExpiryPolicy expiry;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private final FrequencySketch sketch;
+    private volatile String entityName;
+    private volatile Cache<Object, Object> fallback;
+    private ConcurrentMap<Object, Object> asMap;
+
+    /**
+     *
+     * @param maxEntries
+     * @param expiry
+     * @param admission - whether to use TinyLFU admission
+     */
+    LongKeyedCache(int maxEntries, ExpiryPolicy expiry, boolean admission) {
+        this.maxEntries = maxEntries;
+        this.expiry = expiry;
+        this.sketch = admission ? new FrequencySketch(maxEntries) : null;
+        int perSegment = (maxEntries + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * Whether the key can be held in the primitive table. The entity name is
+     * taken from the first key seen
+     *
+     * @param key
+     * @return
+     */
+    private boolean fits(Object key) {
+        String name;
+        if (key instanceof CacheKey) {
+            CacheKey ck = (CacheKey) key;
+            Serializable id = ck.getKey();
+            if (ck.getTenantId() != null || !(id instanceof Long || id instanceof Integer)) {
+                return false;
+            }
+            name = ck.getEntityOrRoleName();
+        } else if (key instanceof EntityId) {
+            name = ((EntityId) key).entityName;
+        } else {
+            return false;
+        }
+        String n = entityName;
+        if (n == null) {
+            synchronized (this) {
+                if (entityName == null) {
+                    entityName = name;
+                }
+                n = entityName;
+            }
+        }
+        return n == name || n.equals(name);
+    }
+
+    private static long idOf(Object key) {
+        if (key instanceof CacheKey) {
+            return ((Number) ((CacheKey) key).getKey()).longValue();
+        }
+        return ((EntityId) key).id;
+    }
+
+    /**
+     * The form a key takes when iterating, ie an EntityId for an entity
+     * CacheKey which could be held in a primitive table, otherwise the key
+     * itself. Used to match keys read back from a snapshot with the CacheKeys
+     * being invalidated
+     *
+     * @param key
+     * @return
+     */
+    static Object iterationKey(Object key) {
+        if (key instanceof CacheKey) {
+            CacheKey ck = (CacheKey) key;
+            Serializable id = ck.getKey();
+            if (ck.getTenantId() == null && (id instanceof Long || id instanceof Integer)) {
+                return new EntityId(ck.getEntityOrRoleName(), ((Number) id).longValue());
+            }
+        }
+        return key;
+    }
+
+    private static int hash(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private Segment segment(int hash) {
+        return segments[hash >>> SEGMENT_SHIFT];
+    }
+
+    private Cache<Object, Object> fallback(boolean create) {
+        Cache<Object, Object> c = fallback;
+        if (c == null && create) {
+            synchronized (this) {
+                c = fallback;
+                if (c == null) {
+                    if (sketch != null) {
+                        c = new TinyLfuCache(maxEntries, expiry, null);
+                    } else {
+                        c = expiry.applyTo(CacheBuilder.newBuilder()
+                                .recordStats()
+                                .maximumSize(maxEntries))
+                                .build();
+                    }
+                    fallback = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    @Override
+    public Object getIfPresent(Object key) {
+        if (!fits(key)) {
+            Cache<Object, Object> c = fallback(false);
+            if (c == null) {
+                misses.increment();
+                return null;
+            }
+            return c.getIfPresent(key);
+        }
+        long id = idOf(key);
+        int h = hash(id);
+        if (sketch != null) {
+            sketch.increment(h);
+        }
+        Object v = segment(h).get(id, h, System.currentTimeMillis());
+        if (v != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return v;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        if (!fits(key)) {
+            fallback(true).put(key, value);
+            return;
+        }
+        long id = idOf(key);
+        int h = hash(id);
+        if (sketch != null) {
+            sketch.increment(h);
+        }
+        segment(h).put(id, h, value, System.currentTimeMillis());
+    }
+
+    /**
+     * Evict entries chosen by CLOCK until the cache holds no more than the
+     * given number, taking the same proportion from each segment. A tinylfu
+     * fallback is trimmed the same way, a guava fallback is left to its own
+     * bound
+     *
+     * @param maxEntries
+     * @return - the number of entries evicted
+     */
+    int trimTo(long maxEntries) {
+        long total = size();
+        if (total <= maxEntries) {
+            return 0;
+        }
+        double ratio = maxEntries / (double) total;
+        int removed = 0;
+        Cache<Object, Object> c = fallback(false);
+        if (c instanceof TinyLfuCache) {
+            removed += ((TinyLfuCache) c).trimTo((long) (c.size() * ratio));
+        }
+        long now = System.currentTimeMillis();
+        for (Segment s : segments) {
+            removed += s.trimTo((long) (s.size * ratio), now);
+        }
+        return removed;
+    }
+
+    /**
+     * Update the entry under the segment's write lock, see
+     * CacheMapView.Compute
+     */
+    Object compute(Object key, BiFunction<? super Object, ? super Object, ? extends Object> fn) {
+        if (!fits(key)) {
+            return fallback(true).asMap().compute(key, fn);
+        }
+        long id = idOf(key);
+        int h = hash(id);
+        if (sketch != null) {
+            sketch.increment(h);
+        }
+        return segment(h).compute(key, id, h, fn, System.currentTimeMillis());
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        if (!fits(key)) {
+            Cache<Object, Object> c = fallback(false);
+            if (c != null) {
+                c.invalidate(key);
+            }
+            return;
+        }
+        long id = idOf(key);
+        int h = hash(id);
+        segment(h).remove(id, h);
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+        Cache<Object, Object> c = fallback(false);
+        if (c != null) {
+            c.invalidateAll();
+        }
+    }
+
+    @Override
+    public long size() {
+        long n = 0;
+        for (Segment s : segments) {
+            n += s.size;
+        }
+        Cache<Object, Object> c = fallback(false);
+        if (c != null) {
+            n += c.size();
+        }
+        return n;
+    }
+
+    @Override
+    public CacheStats stats() {
+        CacheStats st = new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, evictions.sum());
+        Cache<Object, Object> c = fallback(false);
+        if (c != null) {
+            st = st.plus(c.stats());
+        }
+        return st;
+    }
+
+    /**
+     * Number of new entries turned away by the admission policy, including
+     * by a tinylfu fallback. These are not included in the eviction count,
+     * which is only resident entries removed to make room
+     *
+     * @return
+     */
+    long rejectionCount() {
+        long n = rejections.sum();
+        Cache<Object, Object> c = fallback(false);
+        if (c instanceof TinyLfuCache) {
+            n += ((TinyLfuCache) c).rejectionCount();
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized ConcurrentMap<Object, Object> asMap() {
+        if (asMap == null) {
+            asMap = new CacheMapView(this, this::entries, this::compute);
+        }
+        return asMap;
+    }
+
+    private List<Map.Entry<Object, Object>> entries() {
+        List<Map.Entry<Object, Object>> list = new ArrayList<>();
+        String name = entityName;
+        long now = System.currentTimeMillis();
+        for (Segment s : segments) {
+            s.copyTo(name, now, list);
+        }
+        Cache<Object, Object> c = fallback(false);
+        if (c != null) {
+            list.addAll(c.asMap().entrySet());
+        }
+        return list;
+    }
+
+    /**
+     * Identifies an entry in the primitive table when iterating, since the
+     * original CacheKey isnt kept
+     */
+    static final class EntityId implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String entityName;
+        private final long id;
+
+        EntityId(String entityName, long id) {
+            this.entityName = entityName;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof EntityId)) {
+                return false;
+            }
+            EntityId other = (EntityId) obj;
+            return id == other.id && entityName.equals(other.entityName);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash(id);
+        }
+
+        @Override
+        public String toString() {
+            return entityName + "#" + id;
+        }
+    }
+
+    private static final class Table {
+
+        final long[] ids;
+        final Object[] values; // null means the slot is empty
+        final long[] expires;
+        final long[] accessed;
+        final boolean[] referenced;
+        final int mask;
+
+        Table(int capacity) {
+            ids = new long[capacity];
+            values = new Object[capacity];
+            expires = new long[capacity];
+            accessed = new long[capacity];
+            referenced = new boolean[capacity];
+            mask = capacity - 1;
+        }
+    }
+
+    private final class Segment {
+
+        private final StampedLock lock = new StampedLock();
+        private final int maxEntries;
+        private volatile Table table = new Table(INITIAL_CAPACITY);
+        private volatile int size;
+        private int hand;
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        /**
+         * Without idle expiry a hit takes no lock, and only sets the CLOCK
+         * bit once the read is validated. A writer could still move another
+         * entry into the slot before the bit is set, but that only gives the
+         * other entry a second chance. Idle expiry needs the access time to
+         * be right, so takes the read lock
+         */
+        Object get(long id, int hash, long now) {
+            if (!expiry.hasIdleExpiry()) {
+                long stamp = lock.tryOptimisticRead();
+                Table t = table;
+                int i = find(t, id, hash, now);
+                Object v = i < 0 ? null : t.values[i];
+                if (lock.validate(stamp)) {
+                    if (i >= 0) {
+                        t.referenced[i] = true;
+                    }
+                    return v;
+                }
+            }
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                int i = find(t, id, hash, now);
+                if (i < 0) {
+                    return null;
+                }
+                // other readers may write these too, but with the same values
+                t.referenced[i] = true;
+                if (expiry.hasIdleExpiry()) {
+                    t.accessed[i] = now;
+                }
+                return t.values[i];
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * Find the slot of a live entry. May run concurrently with a writer
+         * when called optimistically, so must not fail on inconsistent data,
+         * and must not write anything. The result is only used once the stamp
+         * is validated
+         *
+         * @return - the slot, or -1 if not found or expired
+         */
+        private int find(Table t, long id, int hash, long now) {
+            int i = hash & t.mask;
+            for (int n = 0; n <= t.mask; n++) {
+                if (t.values[i] == null) {
+                    return -1;
+                }
+                if (t.ids[i] == id) {
+                    return expiry.isExpired(t.expires[i], t.accessed[i], now) ? -1 : i;
+                }
+                i = (i + 1) & t.mask;
+            }
+            return -1;
+        }
+
+        private int indexOf(Table t, long id, int hash) {
+            int i = hash & t.mask;
+            for (int n = 0; n <= t.mask; n++) {
+                if (t.values[i] == null) {
+                    return -1;
+                }
+                if (t.ids[i] == id) {
+                    return i;
+                }
+                i = (i + 1) & t.mask;
+            }
+            return -1;
+        }
+
+        void put(long id, int hash, Object value, long now) {
+            if (maxEntries <= 0) {
+                return;
+            }
+            long stamp = lock.writeLock();
+            try {
+                putLocked(id, hash, value, now);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         * Update the entry under the write lock, see CacheMapView.Compute
+         */
+        Object compute(Object key, long id, int hash, BiFunction<? super Object, ? super Object, ? extends Object> fn, long now) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int i = indexOf(t, id, hash);
+                Object current = i >= 0 && !expiry.isExpired(t.expires[i], t.accessed[i], now) ? t.values[i] : null;
+                Object value = fn.apply(key, current);
+                if (value == null) {
+                    if (i >= 0) {
+                        removeAt(t, i);
+                    }
+                } else if (value != current && maxEntries > 0) {
+                    putLocked(id, hash, value, now);
+                }
+                return value;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private void putLocked(long id, int hash, Object value, long now) {
+            Table t = table;
+            int i = indexOf(t, id, hash);
+            if (i >= 0) {
+                t.values[i] = value;
+                t.expires[i] = expiry.expiresAt(now);
+                t.accessed[i] = now;
+                t.referenced[i] = true;
+                return;
+            }
+            if (size >= maxEntries) {
+                int victim = victim(t, now);
+                if (victim >= 0) {
+                    boolean expired = expiry.isExpired(t.expires[victim], t.accessed[victim], now);
+                    if (sketch != null && !expired && sketch.frequency(hash) <= sketch.frequency(hash(t.ids[victim]))) {
+                        rejections.increment();
+                        return; // not admitted
+                    }
+                    removeAt(t, victim);
+                    evictions.increment();
+                }
+            }
+            if ((size + 1) * 2 > t.values.length) {
+                t = resize(t);
+            }
+            i = hash & t.mask;
+            while (t.values[i] != null) {
+                i = (i + 1) & t.mask;
+            }
+            t.ids[i] = id;
+            t.expires[i] = expiry.expiresAt(now);
+            t.accessed[i] = now;
+            t.referenced[i] = false;
+            t.values[i] = value;
+            size++;
+        }
+
+        int trimTo(long max, long now) {
+            int removed = 0;
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                while (size > max) {
+                    int victim = victim(t, now);
+                    if (victim < 0) {
+                        break;
+                    }
+                    removeAt(t, victim);
+                    evictions.increment();
+                    removed++;
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return removed;
+        }
+
+        void remove(long id, int hash) {
+            long stamp = lock.writeLock();
+            try {
+                Table t = table;
+                int i = indexOf(t, id, hash);
+                if (i >= 0) {
+                    removeAt(t, i);
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                table = new Table(INITIAL_CAPACITY);
+                size = 0;
+                hand = 0;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void copyTo(String name, long now, List<Map.Entry<Object, Object>> list) {
+            long stamp = lock.readLock();
+            try {
+                Table t = table;
+                for (int i = 0; i <= t.mask; i++) {
+                    Object v = t.values[i];
+                    if (v != null && !expiry.isExpired(t.expires[i], t.accessed[i], now)) {
+                        list.add(new AbstractMap.SimpleImmutableEntry<>(new EntityId(name, t.ids[i]), v));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         * CLOCK: sweep the hand round, giving referenced entries a second
+         * chance, and return the index of the first expired or unreferenced
+         * entry, or -1 if there are none
+         */
+        private int victim(Table t, long now) {
+            for (int n = 0; n <= t.mask * 2 + 1; n++) {
+                int i = hand;
+                hand = (hand + 1) & t.mask;
+                if (t.values[i] == null) {
+                    continue;
+                }
+                if (t.referenced[i] && !expiry.isExpired(t.expires[i], t.accessed[i], now)) {
+                    t.referenced[i] = false;
+                    continue;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /**
+         * Backward shift deletion: move later entries in the probe sequence
+         * back into the gap, unless that would put them before their home slot
+         */
+        private void removeAt(Table t, int i) {
+            int j = i;
+            while (true) {
+                j = (j + 1) & t.mask;
+                if (t.values[j] == null) {
+                    break;
+                }
+                int home = hash(t.ids[j]) & t.mask;
+                boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+                if (stays) {
+                    continue;
+                }
+                t.ids[i] = t.ids[j];
+                t.expires[i] = t.expires[j];
+                t.accessed[i] = t.accessed[j];
+                t.referenced[i] = t.referenced[j];
+                t.values[i] = t.values[j];
+                i = j;
+            }
+            t.values[i] = null;
+            t.referenced[i] = false;
+            size--;
+        }
+
+        private Table resize(Table old) {
+            Table t = new Table(old.values.length * 2);
+            for (int i = 0; i <= old.mask; i++) {
+                if (old.values[i] != null) {
+                    int j = hash(old.ids[i]) & t.mask;
+                    while (t.values[j] != null) {
+                        j = (j + 1) & t.mask;
+                    }
+                    t.ids[j] = old.ids[i];
+                    t.expires[j] = old.expires[i];
+                    t.accessed[j] = old.accessed[i];
+                    t.referenced[j] = old.referenced[i];
+                    t.values[j] = old.values[i];
+                }
+            }
+            hand = 0;
+            table = t;
+            return t;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Provides slabs which are memory mapped regions of a local file, so that the
+ * OS page cache holds the data and pages it to disk as needed.
+ *
+ * The contents are only meaningful to the process which wrote them, so the
+ * file is truncated when opened and deleted on close.
+ *
+ * @author brad
+ */
+class MappedFileSlabSource implements OffHeapSlabPool.SlabSource, Closeable {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    MappedFileSlabSource(File file) throws IOException {
+        this.file = file;
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory: " + dir.getAbsolutePath());
+        }
+        this.raf = new RandomAccessFile(file, "rw");
+        this.raf.setLength(0);
+        this.channel = raf.getChannel();
+    }
+
+    @Override
+    public ByteBuffer allocate(int slabIndex, int slabSize) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_WRITE, (long) slabIndex * slabSize, slabSize);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+        raf.close();
+        file.delete();
+    }
+}
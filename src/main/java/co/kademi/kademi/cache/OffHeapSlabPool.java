@@ -0,0 +1,278 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A node wide pool of direct memory, used to hold serialized cache entries
+ * outside of the java heap so they dont contribute to old gen GC pauses.
+ *
+ * Memory is allocated in fixed size slabs of direct ByteBuffers, up to a
+ * maximum total. Each slab is dedicated to a size class and carved into equal
+ * sized chunks, memcached style, so there is no fragmentation and freeing is
+ * just pushing the chunk onto its class's free list. Size classes grow by a
+ * factor of 1.5, so at most about a third of a chunk is wasted.
+ *
+ * Each chunk starts with a header of a stamp and a length. A chunk is
+ * identified by an address (slab index in the high 32 bits, offset in the low
+ * 32 bits) plus the stamp it was written with. Readers copy the data out and
+ * then check the stamp is unchanged, so a reader racing with a free and re-use
+ * of the chunk gets a miss rather than someone else's data.
+ *
+ * Slabs are direct buffers by default, but can come from any SlabSource, eg
+ * memory mapped regions of a file for the disk overflow tier.
+ *
+ * @author brad
+ */
+public class OffHeapSlabPool {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapSlabPool.class);
+
+    private static final int HEADER_BYTES = 12; // stamp (long) + length (int)
+    private static final int MIN_CHUNK = 128;
+
+    private final int slabSize;
+    private final long maxBytes;
+    private final SlabSource slabSource;
+    private final ByteBuffer[] slabs;
+    private final SizeClass[] sizeClasses;
+    private final AtomicLong stamps = new AtomicLong();
+    private final AtomicLong bytesInUse = new AtomicLong();
+    private int slabCount;
+
+    public OffHeapSlabPool(long maxBytes, int slabSize) {
+        this(maxBytes, slabSize, (index, size) -> ByteBuffer.allocateDirect(size));
+    }
+
+    public OffHeapSlabPool(long maxBytes, int slabSize, SlabSource slabSource) {
+        this.slabSize = slabSize;
+        this.maxBytes = maxBytes;
+        this.slabSource = slabSource;
+        this.slabs = new ByteBuffer[(int) Math.max(1, maxBytes / slabSize)];
+        List<SizeClass> list = new ArrayList<>();
+        int size = MIN_CHUNK;
+        while (size < slabSize) {
+            list.add(new SizeClass(size));
+            size = ((int) (size * 1.5) + 7) & ~7;
+        }
+        list.add(new SizeClass(slabSize));
+        this.sizeClasses = list.toArray(new SizeClass[list.size()]);
+        log.info("Off heap pool: max bytes={} slab size={} size classes={}", maxBytes, slabSize, sizeClasses.length);
+    }
+
+    /**
+     * Copy the data into a free chunk
+     *
+     * @param data
+     * @return - a reference to the stored data, or null if it is too big or
+     * the pool is full
+     */
+    public Ref write(byte[] data) {
+        SizeClass sc = sizeClassFor(data.length + HEADER_BYTES);
+        if (sc == null) {
+            return null;
+        }
+        long address = sc.allocate();
+        if (address < 0) {
+            return null;
+        }
+        long stamp = stamps.incrementAndGet();
+        ByteBuffer b = slab(address).duplicate();
+        int off = offset(address);
+        b.putLong(off, stamp);
+        VarHandle.storeStoreFence(); // readers must see the new stamp before any of the new data
+        b.putInt(off + 8, data.length);
+        b.position(off + HEADER_BYTES);
+        b.put(data);
+        VarHandle.releaseFence();
+        bytesInUse.addAndGet(sc.chunkSize);
+        return new Ref(address, stamp, sc.chunkSize);
+    }
+
+    /**
+     * Copy the data for the given reference out of the pool
+     *
+     * @param ref
+     * @return - the data, or null if the chunk has since been freed
+     */
+    public byte[] read(Ref ref) {
+        ByteBuffer b = slab(ref.address).duplicate();
+        int off = offset(ref.address);
+        VarHandle.acquireFence();
+        if (b.getLong(off) != ref.stamp) {
+            return null;
+        }
+        int len = b.getInt(off + 8);
+        if (len < 0 || len > ref.chunkSize - HEADER_BYTES) {
+            return null;
+        }
+        byte[] data = new byte[len];
+        b.position(off + HEADER_BYTES);
+        b.get(data);
+        VarHandle.loadLoadFence(); // the stamp must be re-read after the data
+        if (b.getLong(off) != ref.stamp) {
+            return null;
+        }
+        return data;
+    }
+
+    /**
+     * Return the chunk to the pool. Freeing the same reference more than once,
+     * even concurrently, only frees it once
+     *
+     * @param ref
+     * @return - false if it was already freed
+     */
+    public boolean free(Ref ref) {
+        SizeClass sc = sizeClassFor(ref.chunkSize);
+        if (!sc.release(slab(ref.address), ref.address, ref.stamp)) {
+            return false;
+        }
+        bytesInUse.addAndGet(-ref.chunkSize);
+        return true;
+    }
+
+    public long getBytesInUse() {
+        return bytesInUse.get();
+    }
+
+    public synchronized long getBytesAllocated() {
+        return (long) slabCount * slabSize;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Map<String, Object> getInfo() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("maxBytes", maxBytes);
+        map.put("slabSize", slabSize);
+        map.put("bytesAllocated", getBytesAllocated());
+        map.put("bytesInUse", getBytesInUse());
+        return map;
+    }
+
+    private SizeClass sizeClassFor(int bytes) {
+        for (SizeClass sc : sizeClasses) {
+            if (sc.chunkSize >= bytes) {
+                return sc;
+            }
+        }
+        return null;
+    }
+
+    private ByteBuffer slab(long address) {
+        return slabs[(int) (address >>> 32)];
+    }
+
+    private static int offset(long address) {
+        return (int) address;
+    }
+
+    /**
+     * Allocate a new slab, or return -1 if the pool is at its maximum size
+     *
+     * @return
+     */
+    private synchronized int newSlab() {
+        if (slabCount >= slabs.length) {
+            return -1;
+        }
+        try {
+            slabs[slabCount] = slabSource.allocate(slabCount, slabSize);
+        } catch (IOException ex) {
+            log.error("newSlab: could not allocate slab " + slabCount, ex);
+            return -1;
+        }
+        return slabCount++;
+    }
+
+    private class SizeClass {
+
+        private final int chunkSize;
+        private long[] free = new long[64];
+        private int freeCount;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        synchronized long allocate() {
+            if (freeCount == 0) {
+                int slab = newSlab();
+                if (slab < 0) {
+                    return -1;
+                }
+                int chunks = slabSize / chunkSize;
+                for (int i = chunks - 1; i >= 0; i--) {
+                    push(((long) slab << 32) | ((long) i * chunkSize));
+                }
+            }
+            return free[--freeCount];
+        }
+
+        /**
+         * Check and clear the stamp under the lock, so two threads freeing
+         * the same chunk cant both push it onto the free list
+         */
+        synchronized boolean release(ByteBuffer b, long address, long stamp) {
+            int off = offset(address);
+            if (b.getLong(off) != stamp) {
+                return false; // already freed
+            }
+            b.putLong(off, 0);
+            VarHandle.releaseFence();
+            push(address);
+            return true;
+        }
+
+        private void push(long address) {
+            if (freeCount == free.length) {
+                long[] arr = new long[free.length * 2];
+                System.arraycopy(free, 0, arr, 0, freeCount);
+                free = arr;
+            }
+            free[freeCount++] = address;
+        }
+    }
+
+    /**
+     * Provides the memory for each slab
+     */
+    public interface SlabSource {
+
+        ByteBuffer allocate(int slabIndex, int slabSize) throws IOException;
+    }
+
+    /**
+     * Identifies data stored in the pool
+     */
+    public static final class Ref {
+
+        private final long address;
+        private final long stamp;
+        private final int chunkSize;
+
+        private Ref(long address, long stamp, int chunkSize) {
+            this.address = address;
+            this.stamp = stamp;
+            this.chunkSize = chunkSize;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.SerializationUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A tier of serialized entries for a region, held in an OffHeapSlabPool. Only
+ * a small index of key to pool reference is kept on the heap for each
+ * partition. The index is a guava cache, so it does the expiry and size
+ * limiting, and frees pool memory as entries are removed.
+ *
+ * This is used for the off heap tier, where a small on heap hot set sits in
+ * front of it, and for the disk overflow tier, where entries evicted from the
+ * on heap cache are demoted to it. See CachePartition
+ *
+ * @author brad
+ */
+class OffHeapTier {
+
+    private static final Logger log = LoggerFactory.getLogger(OffHeapTier.class);
+
+    private final String regionName;
+    private final String statsPrefix;
+    private final OffHeapSlabPool pool;
+    private final int maxEntries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final RemovalListener<Object, OffHeapSlabPool.Ref> onRemoval;
+
+    OffHeapTier(String regionName, String statsPrefix, OffHeapSlabPool pool, int maxEntries) {
+        this.regionName = regionName;
+        this.statsPrefix = statsPrefix;
+        this.pool = pool;
+        this.maxEntries = maxEntries;
+        this.onRemoval = (n) -> {
+            OffHeapSlabPool.Ref ref = n.getValue();
+            if (ref != null && pool.free(ref)) {
+                bytes.addAndGet(-ref.getChunkSize());
+            }
+        };
+    }
+
+    OffHeapSlabPool getPool() {
+        return pool;
+    }
+
+    Cache<Object, OffHeapSlabPool.Ref> createIndex(int seconds) {
+        return CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(seconds, TimeUnit.SECONDS)
+                .removalListener(onRemoval)
+                .build();
+    }
+
+    Object read(Cache<Object, OffHeapSlabPool.Ref> index, Object key) {
+        OffHeapSlabPool.Ref ref = index.getIfPresent(key);
+        return read(index, key, ref);
+    }
+
+    /**
+     * Read and remove the entry, so it can be promoted to a higher tier
+     *
+     * @param index
+     * @param key
+     * @return
+     */
+    Object take(Cache<Object, OffHeapSlabPool.Ref> index, Object key) {
+        OffHeapSlabPool.Ref ref = index.getIfPresent(key);
+        Object o = read(index, key, ref);
+        if (o != null) {
+            index.asMap().remove(key, ref);
+        }
+        return o;
+    }
+
+    private Object read(Cache<Object, OffHeapSlabPool.Ref> index, Object key, OffHeapSlabPool.Ref ref) {
+        if (ref == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        byte[] data = pool.read(ref);
+        if (data == null) {
+            // freed after we looked it up
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            Object o = SerializationUtils.deserialize(data);
+            hits.incrementAndGet();
+            return o;
+        } catch (Exception e) {
+            log.warn("read: could not deserialize {} entry in region {}: {}", statsPrefix, regionName, e.toString());
+            index.asMap().remove(key, ref);
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    void write(Cache<Object, OffHeapSlabPool.Ref> index, Object key, Object value) {
+        OffHeapSlabPool.Ref ref = null;
+        if (value instanceof Serializable) {
+            try {
+                ref = pool.write(SerializationUtils.serialize((Serializable) value));
+            } catch (Exception e) {
+                log.debug("write: could not serialize value in region {}: {}", regionName, e.toString());
+            }
+        }
+        if (ref == null) {
+            // too big, not serializable, or the pool is full. Make sure we dont leave an old value
+            rejected.incrementAndGet();
+            index.invalidate(key);
+            return;
+        }
+        bytes.addAndGet(ref.getChunkSize());
+        index.put(key, ref);
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    Map<String, Object> getInfo() {
+        Map<String, Object> map = new HashMap<>();
+        map.put(statsPrefix + "Hits", hits.get());
+        map.put(statsPrefix + "Misses", misses.get());
+        map.put(statsPrefix + "Rejected", rejected.get());
+        map.put(statsPrefix + "Bytes", bytes.get());
+        return map;
+    }
+}
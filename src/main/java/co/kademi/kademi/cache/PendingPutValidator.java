@@ -0,0 +1,272 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops a value loaded from the database being cached after the key has
+ * been invalidated, like infinispan's PutFromLoadValidator.
+ *
+ * The problem is a thread which misses the cache, reads the row, and then
+ * calls putFromLoad after another transaction has committed an update and
+ * invalidated the key. Without this the stale value would be cached until it
+ * expired.
+ *
+ * When a thread misses the cache it registers a pending put for the key.
+ * Invalidating the key (locally or from a peer's message) discards all
+ * pending puts for it, so when the loading thread gets to putFromLoad its
+ * registration has gone and the put is refused.
+ *
+ * Hibernate also calls putFromLoad for entities loaded by queries, without a
+ * get first. For those the put is refused if the key (or the region) was
+ * invalidated after the loading transaction started. That applies to
+ * registered puts too, since under MVCC (eg REPEATABLE READ) a transaction
+ * which started before the invalidation reads the row as it was then, even
+ * if it missed the cache afterwards.
+ *
+ * Finally, an invalidation might arrive while an accepted put is being
+ * written. So the caller checks afterwards with wasInvalidatedSince, and
+ * removes the value if so.
+ *
+ * Registrations and invalidation records are kept for the region's lock
+ * timeout, and swept lazily
+ *
+ * @author brad
+ */
+class PendingPutValidator {
+
+    private static final long SWEEP_INTERVAL_MS = 10000;
+
+    /**
+     * Returned by acceptPutFromLoad when the put must not happen
+     */
+    static final long REJECTED = -1;
+
+    private final long timeoutMillis;
+    private final ConcurrentHashMap<PendingKey, PendingPut> pending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<PendingKey, Invalidated> invalidations = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    private final LongAdder registered = new LongAdder();
+    private final LongAdder voided = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private volatile Invalidated allInvalidated = new Invalidated(0, 0);
+
+    PendingPutValidator(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Called by a thread which has missed the cache and is about to load the
+     * value
+     *
+     * @param partitionId
+     * @param key
+     */
+    void registerPendingPut(Serializable partitionId, Object key) {
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        long threadId = Thread.currentThread().getId();
+        pending.compute(new PendingKey(partitionId, key), (k, pp) -> {
+            if (pp == null) {
+                pp = new PendingPut();
+            }
+            pp.owners.put(threadId, now);
+            return pp;
+        });
+        registered.increment();
+    }
+
+    /**
+     * Decide whether a value loaded by this thread may be cached
+     *
+     * @param partitionId
+     * @param key
+     * @param txTimestamp - when the loading transaction started
+     * @return - REJECTED, or a sequence number to pass to
+     * wasInvalidatedSince once the value has been put
+     */
+    long acceptPutFromLoad(Serializable partitionId, Object key, long txTimestamp) {
+        long seq = sequence.get();
+        PendingKey pk = new PendingKey(partitionId, key);
+        long threadId = Thread.currentThread().getId();
+        Long[] registeredAt = new Long[1];
+        pending.computeIfPresent(pk, (k, pp) -> {
+            registeredAt[0] = pp.owners.remove(threadId);
+            return pp.owners.isEmpty() ? null : pp;
+        });
+        if (registeredAt[0] != null) {
+            // not voided since this thread missed the cache. But with MVCC the transaction reads from its
+            // own snapshot, so if it started before an invalidation it may have read the old row
+            if (System.currentTimeMillis() - registeredAt[0] <= timeoutMillis && !isInvalidatedAfter(pk, txTimestamp)) {
+                return seq;
+            }
+        } else if (!isInvalidatedAfter(pk, txTimestamp)) {
+            // loaded without a cache miss, eg by a query
+            return seq;
+        }
+        rejected.increment();
+        return REJECTED;
+    }
+
+    private boolean isInvalidatedAfter(PendingKey pk, long txTimestamp) {
+        if (allInvalidated.time >= txTimestamp) {
+            return true;
+        }
+        Invalidated inv = invalidations.get(pk);
+        if (inv == null && pk.partitionId != null) {
+            inv = invalidations.get(new PendingKey(null, pk.key));
+        }
+        return inv != null && inv.time >= txTimestamp;
+    }
+
+    /**
+     * True if the key has been invalidated since acceptPutFromLoad returned
+     * the given sequence
+     *
+     * @param partitionId
+     * @param key
+     * @param seq
+     * @return
+     */
+    boolean wasInvalidatedSince(Serializable partitionId, Object key, long seq) {
+        if (sequence.get() == seq) {
+            return false; // nothing at all has been invalidated
+        }
+        if (allInvalidated.seq > seq) {
+            return true;
+        }
+        Invalidated inv = invalidations.get(new PendingKey(partitionId, key));
+        if (inv != null && inv.seq > seq) {
+            return true;
+        }
+        if (partitionId != null) {
+            inv = invalidations.get(new PendingKey(null, key));
+            return inv != null && inv.seq > seq;
+        }
+        return false;
+    }
+
+    /**
+     * Void loads in progress for the key. If partitionId is null the key is
+     * invalidated in all partitions
+     *
+     * @param partitionId
+     * @param key
+     */
+    void invalidateKey(Serializable partitionId, Object key) {
+        PendingKey pk = new PendingKey(partitionId, key);
+        Invalidated inv = new Invalidated(System.currentTimeMillis(), sequence.incrementAndGet());
+        invalidations.put(pk, inv);
+        discard(pending.remove(pk));
+        if (partitionId != null) {
+            // the default partition is always invalidated too
+            discard(pending.remove(new PendingKey(null, key)));
+        } else {
+            Iterator<Map.Entry<PendingKey, PendingPut>> it = pending.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PendingKey, PendingPut> e = it.next();
+                if (Objects.equals(e.getKey().key, key)) {
+                    discard(pending.remove(e.getKey()));
+                }
+            }
+        }
+    }
+
+    /**
+     * Void all loads in progress for the region
+     */
+    void invalidateAll() {
+        allInvalidated = new Invalidated(System.currentTimeMillis(), sequence.incrementAndGet());
+        Iterator<PendingKey> it = pending.keySet().iterator();
+        while (it.hasNext()) {
+            discard(pending.remove(it.next()));
+        }
+    }
+
+    private void discard(PendingPut pp) {
+        if (pp != null) {
+            voided.add(pp.owners.size());
+        }
+    }
+
+    private void sweepIfDue(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        // transactions which started before these times have timed out
+        invalidations.values().removeIf(inv -> now - inv.time > timeoutMillis);
+        for (PendingKey pk : pending.keySet()) {
+            pending.computeIfPresent(pk, (k, pp) -> {
+                pp.owners.values().removeIf(t -> now - t > timeoutMillis);
+                return pp.owners.isEmpty() ? null : pp;
+            });
+        }
+    }
+
+    Map<String, Object> getInfo() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("pendingPuts", pending.size());
+        map.put("pendingPutsRegistered", registered.sum());
+        map.put("pendingPutsVoided", voided.sum());
+        map.put("putFromLoadRejected", rejected.sum());
+        return map;
+    }
+
+    /**
+     * Threads loading the key, and when they registered. Only changed inside
+     * ConcurrentHashMap.compute, so guarded by the map
+     */
+    private static class PendingPut {
+
+        private final Map<Long, Long> owners = new HashMap<>(4);
+    }
+
+    private static class Invalidated {
+
+        private final long time;
+        private final long seq;
+
+        Invalidated(long time, long seq) {
+            this.time = time;
+            this.seq = seq;
+        }
+    }
+
+    private static class PendingKey {
+
+        private final Serializable partitionId;
+        private final Object key;
+        private final int hash;
+
+        PendingKey(Serializable partitionId, Object key) {
+            this.partitionId = partitionId;
+            this.key = key;
+            this.hash = 31 * Objects.hashCode(partitionId) + key.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PendingKey)) {
+                return false;
+            }
+            PendingKey other = (PendingKey) obj;
+            return hash == other.hash && key.equals(other.key) && Objects.equals(partitionId, other.partitionId);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/**
+ * Records which query spaces (ie tables) each cached query result depends
+ * on, so that when a table changes only the results which read from it are
+ * invalidated, instead of every query result in the partition.
+ *
+ * Hibernate doesnt pass the spaces when putting a query result, but does
+ * when getting it first, so KademiQueryCache passes them on from there.
+ * Results put without spaces, eg if the query cache factory isnt configured
+ * or the cache mode doesnt get, depend on every space.
+ *
+ * Space names are the same as hibernate uses for the timestamps region, ie
+ * table names, compared without case, quotes or schema.
+ *
+ * Results which have been evicted or expired from the query region are
+ * removed from the index by a periodic sweep
+ *
+ * @author brad
+ */
+class QuerySpaceIndex {
+
+    private static final long SWEEP_INTERVAL_MS = 60 * 1000;
+
+    /**
+     * Results which depend on all spaces
+     */
+    static final String ANY_SPACE = "*";
+
+    private static final Set<String> ANY_SPACES = Collections.singleton(ANY_SPACE);
+
+    private final ConcurrentHashMap<List<Object>, Set<Object>> index = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    private final LongAdder spaceInvalidations = new LongAdder();
+    private final LongAdder resultsInvalidated = new LongAdder();
+    private final LongAdder withoutSpaces = new LongAdder();
+
+    /**
+     * Index a cached query result
+     *
+     * @param partitionId
+     * @param key - normally a QueryKey
+     * @param spaces - the spaces hibernate gave for the query, or null if
+     * not known
+     */
+    void add(Serializable partitionId, Object key, Set<? extends Serializable> spaces) {
+        Set<String> names;
+        if (spaces == null || spaces.isEmpty()) {
+            withoutSpaces.increment();
+            names = ANY_SPACES;
+        } else {
+            names = new HashSet<>();
+            for (Serializable space : spaces) {
+                names.add(normalise(space.toString()));
+            }
+        }
+        for (String space : names) {
+            index.computeIfAbsent(Arrays.asList(partitionId, space), k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    /**
+     * Remove and return the keys of results which depend on any of the
+     * spaces, in the given partition or all partitions if partitionId is
+     * null
+     *
+     * @param partitionId
+     * @param spaces - raw space names
+     * @return
+     */
+    Map<Serializable, Set<Object>> remove(Serializable partitionId, Collection<String> spaces) {
+        Set<String> names = new HashSet<>();
+        for (String s : spaces) {
+            names.add(normalise(s));
+        }
+        names.add(ANY_SPACE);
+        spaceInvalidations.add(spaces.size());
+        Map<Serializable, Set<Object>> removed = new HashMap<>();
+        if (partitionId != null) {
+            for (String name : names) {
+                Set<Object> keys = index.remove(Arrays.asList(partitionId, name));
+                if (keys != null) {
+                    removed.computeIfAbsent(partitionId, k -> new HashSet<>()).addAll(keys);
+                }
+                // the default partition is always invalidated too
+                keys = index.remove(Arrays.asList(null, name));
+                if (keys != null) {
+                    removed.computeIfAbsent(null, k -> new HashSet<>()).addAll(keys);
+                }
+            }
+        } else {
+            for (List<Object> k : new ArrayList<>(index.keySet())) {
+                if (names.contains((String) k.get(1))) {
+                    Set<Object> keys = index.remove(k);
+                    if (keys != null) {
+                        removed.computeIfAbsent((Serializable) k.get(0), p -> new HashSet<>()).addAll(keys);
+                    }
+                }
+            }
+        }
+        for (Set<Object> keys : removed.values()) {
+            resultsInvalidated.add(keys.size());
+        }
+        return removed;
+    }
+
+    /**
+     * Forget results which are no longer cached, if a sweep is due
+     *
+     * @param isCached - given a partition id and key, is the result still
+     * cached
+     */
+    void sweepIfDue(BiPredicate<Serializable, Object> isCached) {
+        long now = System.currentTimeMillis();
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        for (Map.Entry<List<Object>, Set<Object>> e : index.entrySet()) {
+            Serializable partitionId = (Serializable) e.getKey().get(0);
+            e.getValue().removeIf(key -> !isCached.test(partitionId, key));
+            if (e.getValue().isEmpty()) {
+                index.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    Map<String, Object> getInfo() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("querySpacesIndexed", index.size());
+        map.put("querySpaceInvalidations", spaceInvalidations.sum());
+        map.put("queryResultsInvalidatedBySpace", resultsInvalidated.sum());
+        map.put("queryResultsWithoutSpaces", withoutSpaces.sum());
+        return map;
+    }
+
+    /**
+     * Lower case, without quotes or schema
+     *
+     * @param space
+     * @return
+     */
+    static String normalise(String space) {
+        String s = space.trim();
+        int dot = s.lastIndexOf('.');
+        if (dot >= 0) {
+            s = s.substring(dot + 1);
+        }
+        if (s.length() > 1) {
+            char c = s.charAt(0);
+            if (c == '"' || c == '`' || c == '[') {
+                s = s.substring(1, s.length() - 1);
+            }
+        }
+        return s.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size ring of the most recent invalidations, used to answer
+ * snapshot sync requests from peers and for diagnostics.
+ *
+ * Recording is lock free and allocates nothing: a writer claims a slot by
+ * incrementing a counter and writes the fields into parallel arrays. Each
+ * slot also holds the sequence number of the record in it, which is cleared
+ * while the slot is being written and set once it is complete. A reader
+ * checks the sequence before and after reading the fields, and skips the
+ * slot if it changed, ie if a writer lapped it
+ *
+ * @author brad
+ */
+class RecentInvalidations {
+
+    private final long started = System.currentTimeMillis();
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLongArray seqs;
+    private final AtomicLongArray times;
+    private final AtomicReferenceArray<String> cacheNames;
+    private final AtomicReferenceArray<Serializable> keys;
+    private final AtomicReferenceArray<Serializable> partitionIds;
+
+    /**
+     *
+     * @param capacity - rounded up to a power of two
+     */
+    RecentInvalidations(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.mask = size - 1;
+        this.seqs = new AtomicLongArray(size);
+        this.times = new AtomicLongArray(size);
+        this.cacheNames = new AtomicReferenceArray<>(size);
+        this.keys = new AtomicReferenceArray<>(size);
+        this.partitionIds = new AtomicReferenceArray<>(size);
+        for (int i = 0; i < size; i++) {
+            seqs.set(i, -1);
+        }
+    }
+
+    void add(String cacheName, Serializable key, Serializable partitionId) {
+        long seq = next.getAndIncrement();
+        int slot = (int) (seq & mask);
+        seqs.set(slot, -1);
+        times.set(slot, System.currentTimeMillis());
+        cacheNames.set(slot, cacheName);
+        keys.set(slot, key);
+        partitionIds.set(slot, partitionId);
+        seqs.set(slot, seq);
+    }
+
+    /**
+     * When recording started, eg when this node started. Nothing before this
+     * is known
+     *
+     * @return
+     */
+    long getStarted() {
+        return started;
+    }
+
+    /**
+     * True if records have been overwritten, ie older invalidations have
+     * been lost
+     *
+     * @return
+     */
+    boolean hasWrapped() {
+        return next.get() > mask + 1;
+    }
+
+    /**
+     * Visit the records currently held, oldest first. Records being written
+     * concurrently may be skipped
+     *
+     * @param visitor
+     */
+    void forEach(Visitor visitor) {
+        long end = next.get();
+        long start = Math.max(0, end - (mask + 1));
+        for (long seq = start; seq < end; seq++) {
+            int slot = (int) (seq & mask);
+            if (seqs.get(slot) != seq) {
+                continue;
+            }
+            long time = times.get(slot);
+            String cacheName = cacheNames.get(slot);
+            Serializable key = keys.get(slot);
+            Serializable partitionId = partitionIds.get(slot);
+            if (seqs.get(slot) == seq) {
+                visitor.visit(time, cacheName, key, partitionId);
+            }
+        }
+    }
+
+    interface Visitor {
+
+        void visit(long time, String cacheName, Serializable key, Serializable partitionId);
+    }
+}
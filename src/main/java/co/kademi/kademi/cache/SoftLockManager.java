@@ -0,0 +1,187 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.hibernate.cache.spi.access.SoftLock;
+
+/**
+ * Per key soft locks for a READ_WRITE region.
+ *
+ * While a key is locked (ie a transaction is writing it) reads miss and
+ * loads are not cached. After it is unlocked, loads from transactions which
+ * started before the unlock are still refused, since they might have read
+ * the old row. The same applies to the whole region for bulk operations.
+ *
+ * Locks are counted, since several transactions (or peers) can lock the
+ * same key, and expire after the region timeout so a lost unlock cant make
+ * a key uncacheable for ever. Old entries are swept lazily when locking,
+ * like idle partitions.
+ *
+ * Times are from System.currentTimeMillis(), so transaction timestamps
+ * must be converted with HybridLogicalClock.toMillis
+ *
+ * @author brad
+ */
+class SoftLockManager {
+
+    private static final long SWEEP_INTERVAL_MS = 10000;
+
+    private final long timeoutMillis;
+    private final ConcurrentHashMap<Object, ItemLock> locks = new ConcurrentHashMap<>();
+    private final AtomicLong nextLockId = new AtomicLong();
+    private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+    private final AtomicInteger regionLocks = new AtomicInteger();
+    private final LongAdder itemsLocked = new LongAdder();
+    private final LongAdder lockedMisses = new LongAdder();
+    private final LongAdder putsRefused = new LongAdder();
+    private volatile long regionLockedUntil;
+    private volatile long regionUnlockTimestamp;
+
+    SoftLockManager(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    SoftLock lock(Object key) {
+        long now = System.currentTimeMillis();
+        sweepIfDue(now);
+        locks.compute(key, (k, l) -> {
+            if (l == null) {
+                l = new ItemLock();
+            } else if (now >= l.lockedUntil) {
+                l.holders = 0; // the previous holders timed out
+            }
+            l.holders++;
+            l.lockedUntil = now + timeoutMillis;
+            return l;
+        });
+        itemsLocked.increment();
+        return new Lock(nextLockId.incrementAndGet());
+    }
+
+    void unlock(Object key) {
+        long now = System.currentTimeMillis();
+        locks.computeIfPresent(key, (k, l) -> {
+            if (l.holders > 0) {
+                l.holders--;
+            }
+            if (l.holders == 0) {
+                l.lockedUntil = 0;
+            }
+            l.unlockTimestamp = now;
+            return l;
+        });
+    }
+
+    SoftLock lockRegion() {
+        long now = System.currentTimeMillis();
+        regionLocks.incrementAndGet();
+        regionLockedUntil = now + timeoutMillis;
+        return new Lock(nextLockId.incrementAndGet());
+    }
+
+    void unlockRegion() {
+        if (regionLocks.decrementAndGet() <= 0) {
+            regionLocks.set(0);
+            regionLockedUntil = 0;
+        }
+        regionUnlockTimestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * True if the key or region is currently locked, so a read should miss
+     *
+     * @param key
+     * @return
+     */
+    boolean isLocked(Object key) {
+        long now = System.currentTimeMillis();
+        boolean locked = now < regionLockedUntil;
+        if (!locked) {
+            ItemLock l = locks.get(key);
+            locked = l != null && now < l.lockedUntil;
+        }
+        if (locked) {
+            lockedMisses.increment();
+        }
+        return locked;
+    }
+
+    /**
+     * True if a value loaded by a transaction which started at txTimestamp
+     * may be cached
+     *
+     * @param key
+     * @param txTimestamp
+     * @return
+     */
+    boolean isWriteable(Object key, long txTimestamp) {
+        long now = System.currentTimeMillis();
+        boolean ok = now >= regionLockedUntil && txTimestamp > regionUnlockTimestamp;
+        if (ok) {
+            ItemLock l = locks.get(key);
+            ok = l == null || (now >= l.lockedUntil && txTimestamp > l.unlockTimestamp);
+        }
+        if (!ok) {
+            putsRefused.increment();
+        }
+        return ok;
+    }
+
+    private void sweepIfDue(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_MS || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        Iterator<Map.Entry<Object, ItemLock>> it = locks.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, ItemLock> e = it.next();
+            ItemLock l = e.getValue();
+            // no longer locked, and any transaction which could have seen the old value has timed out
+            if (now >= l.lockedUntil && now - l.unlockTimestamp > timeoutMillis) {
+                locks.remove(e.getKey(), l);
+            }
+        }
+    }
+
+    Map<String, Object> getInfo() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("softLocks", locks.size());
+        map.put("softLocksTaken", itemsLocked.sum());
+        map.put("softLockedMisses", lockedMisses.sum());
+        map.put("softLockPutsRefused", putsRefused.sum());
+        map.put("softLockTimeoutMillis", timeoutMillis);
+        return map;
+    }
+
+    /**
+     * Only changed inside ConcurrentHashMap.compute, so guarded by the map
+     */
+    private static class ItemLock {
+
+        private volatile int holders;
+        private volatile long lockedUntil;
+        private volatile long unlockTimestamp;
+    }
+
+    static class Lock extends KademiSoftLock {
+
+        private final long id;
+
+        Lock(long id) {
+            this.id = id;
+        }
+
+        @Override
+        public String toString() {
+            return "SoftLock#" + id;
+        }
+    }
+}
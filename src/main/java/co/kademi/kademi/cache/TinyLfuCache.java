@@ -0,0 +1,390 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+
+/**
+ * A size bounded cache which uses CLOCK to choose an eviction victim, and a
+ * TinyLFU FrequencySketch to decide whether a new entry should replace it at
+ * all. A new key is only admitted to a full cache if it has been seen more
+ * often recently than the victim, so a one off scan (eg a report or reindex
+ * loading thousands of entities) is turned away instead of flushing the hot
+ * set. Evictions count resident entries removed to make room, rejected new
+ * entries are counted separately, see rejectionCount.
+ *
+ * Entries are split over segments, each an insertion ordered LinkedHashMap
+ * guarded by a StampedLock. Reads take the read lock and set the entry's
+ * referenced bit, so they never reorder the map. CLOCK moves referenced
+ * entries to the tail as it passes them.
+ *
+ * Entries expire according to the region's ExpiryPolicy, with the jitter
+ * applied to each entry. If a removal listener is given it is told about
+ * entries evicted or rejected for size, like a guava cache, eg so the
+ * overflow tier can take them
+ *
+ * Selected with hibernate.cache.[region].eviction=tinylfu
+ *
+ * @author brad
+ */
+class TinyLfuCache extends AbstractCache<Object, Object> {
+
+    private static final int SEGMENTS = 16;
+
+    private final ExpiryPolicy expiry;
+    private final RemovalListener<Object, Object> listener;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final FrequencySketch sketch;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+    private ConcurrentMap<Object, Object> asMap;
+
+    TinyLfuCache(int maxEntries, ExpiryPolicy expiry, RemovalListener<Object, Object> listener) {
+        this.expiry = expiry;
+        this.listener = listener;
+        this.sketch = new FrequencySketch(maxEntries);
+        int perSegment = (maxEntries + SEGMENTS - 1) / SEGMENTS;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    private Segment segment(int hash) {
+        return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    @Override
+    public Object getIfPresent(Object key) {
+        int h = key.hashCode();
+        sketch.increment(h);
+        Node n = segment(h).get(key);
+        long now = System.currentTimeMillis();
+        if (n != null && !n.isExpired(now)) {
+            n.referenced = true;
+            if (expiry.hasIdleExpiry()) {
+                n.accessed = now;
+            }
+            hits.increment();
+            return n.value;
+        }
+        misses.increment();
+        return null;
+    }
+
+    @Override
+    public void put(Object key, Object value) {
+        int h = key.hashCode();
+        sketch.increment(h);
+        afterPut(key, segment(h).put(key, h, value, System.currentTimeMillis()));
+    }
+
+    /**
+     * Evict entries chosen by CLOCK, as if the cache had been created with
+     * the given size, until it holds no more than that. They are counted and
+     * passed to the removal listener like any other eviction
+     *
+     * @param maxEntries
+     * @return - the number of entries evicted
+     */
+    int trimTo(long maxEntries) {
+        long perSegment = (maxEntries + SEGMENTS - 1) / SEGMENTS;
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Segment s : segments) {
+            for (Map.Entry<Object, Object> e : s.trimTo(perSegment, now)) {
+                evictions.increment();
+                if (listener != null) {
+                    listener.onRemoval(RemovalNotification.create(e.getKey(), e.getValue(), RemovalCause.SIZE));
+                }
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Update the entry under the segment's write lock, see
+     * CacheMapView.Compute
+     */
+    Object compute(Object key, BiFunction<? super Object, ? super Object, ? extends Object> fn) {
+        int h = key.hashCode();
+        sketch.increment(h);
+        Object[] result = new Object[1];
+        afterPut(key, segment(h).compute(key, h, fn, System.currentTimeMillis(), result));
+        return result[0];
+    }
+
+    private void afterPut(Object key, Map.Entry<Object, Object> removed) {
+        if (removed != null) {
+            if (key.equals(removed.getKey())) {
+                rejections.increment(); // the new entry wasnt admitted
+            } else {
+                evictions.increment();
+            }
+            if (listener != null) {
+                listener.onRemoval(RemovalNotification.create(removed.getKey(), removed.getValue(), RemovalCause.SIZE));
+            }
+        }
+    }
+
+    @Override
+    public void invalidate(Object key) {
+        segment(key.hashCode()).remove(key);
+    }
+
+    @Override
+    public void invalidateAll() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    @Override
+    public long size() {
+        long n = 0;
+        for (Segment s : segments) {
+            n += s.size();
+        }
+        return n;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), 0, 0, 0, evictions.sum());
+    }
+
+    /**
+     * Number of new entries turned away by the admission policy. These are
+     * not included in the eviction count
+     *
+     * @return
+     */
+    long rejectionCount() {
+        return rejections.sum();
+    }
+
+    @Override
+    public synchronized ConcurrentMap<Object, Object> asMap() {
+        if (asMap == null) {
+            asMap = new CacheMapView(this, this::entries, this::compute);
+        }
+        return asMap;
+    }
+
+    private List<Map.Entry<Object, Object>> entries() {
+        List<Map.Entry<Object, Object>> list = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (Segment s : segments) {
+            s.copyTo(now, list);
+        }
+        return list;
+    }
+
+    private final class Node {
+
+        final Object value;
+        final long expires;
+        volatile long accessed;
+        volatile boolean referenced;
+
+        Node(Object value, long now) {
+            this.value = value;
+            this.expires = expiry.expiresAt(now);
+            this.accessed = now;
+        }
+
+        boolean isExpired(long now) {
+            return expiry.isExpired(expires, accessed, now);
+        }
+    }
+
+    private final class Segment {
+
+        private final StampedLock lock = new StampedLock();
+        private final LinkedHashMap<Object, Node> map = new LinkedHashMap<>();
+        private final int maxEntries;
+
+        Segment(int maxEntries) {
+            this.maxEntries = maxEntries;
+        }
+
+        Node get(Object key) {
+            long stamp = lock.readLock();
+            try {
+                return map.get(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        /**
+         *
+         * @return - the entry evicted or rejected to make room, if any
+         */
+        Map.Entry<Object, Object> put(Object key, int hash, Object value, long now) {
+            if (maxEntries <= 0) {
+                return new AbstractMap.SimpleImmutableEntry<>(key, value);
+            }
+            long stamp = lock.writeLock();
+            try {
+                return putLocked(key, hash, value, now);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        /**
+         *
+         * @param result - set to the new value
+         * @return - the entry evicted or rejected to make room, if any
+         */
+        Map.Entry<Object, Object> compute(Object key, int hash, BiFunction<? super Object, ? super Object, ? extends Object> fn, long now, Object[] result) {
+            long stamp = lock.writeLock();
+            try {
+                Node existing = map.get(key);
+                Object current = existing != null && !existing.isExpired(now) ? existing.value : null;
+                Object value = fn.apply(key, current);
+                result[0] = value;
+                if (value == null) {
+                    if (existing != null) {
+                        map.remove(key);
+                    }
+                    return null;
+                }
+                if (value == current) {
+                    return null;
+                }
+                if (maxEntries <= 0) {
+                    return new AbstractMap.SimpleImmutableEntry<>(key, value);
+                }
+                return putLocked(key, hash, value, now);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        private Map.Entry<Object, Object> putLocked(Object key, int hash, Object value, long now) {
+            Node n = new Node(value, now);
+            if (map.containsKey(key)) {
+                n.referenced = true;
+                map.put(key, n); // keeps its position
+                return null;
+            }
+            Map.Entry<Object, Node> victim = null;
+            if (map.size() >= maxEntries) {
+                victim = victim(now);
+                if (victim != null) {
+                    boolean expired = victim.getValue().isExpired(now);
+                    if (!expired && sketch.frequency(hash) <= sketch.frequency(victim.getKey().hashCode())) {
+                        return new AbstractMap.SimpleImmutableEntry<>(key, value); // not admitted
+                    }
+                    map.remove(victim.getKey());
+                }
+            }
+            map.put(key, n);
+            if (victim == null) {
+                return null;
+            }
+            return new AbstractMap.SimpleImmutableEntry<>(victim.getKey(), victim.getValue().value);
+        }
+
+        /**
+         * CLOCK over the insertion order: referenced entries get a second
+         * chance by moving to the tail. Returns the first entry which is
+         * expired or unreferenced, without removing it
+         */
+        private Map.Entry<Object, Node> victim(long now) {
+            int limit = map.size() * 2;
+            for (int i = 0; i < limit; i++) {
+                Iterator<Map.Entry<Object, Node>> it = map.entrySet().iterator();
+                if (!it.hasNext()) {
+                    return null;
+                }
+                Map.Entry<Object, Node> e = it.next();
+                Node n = e.getValue();
+                if (!n.referenced || n.isExpired(now)) {
+                    return e;
+                }
+                n.referenced = false;
+                it.remove();
+                map.put(e.getKey(), n);
+            }
+            return null;
+        }
+
+        List<Map.Entry<Object, Object>> trimTo(long max, long now) {
+            List<Map.Entry<Object, Object>> evicted = new ArrayList<>();
+            long stamp = lock.writeLock();
+            try {
+                while (map.size() > max) {
+                    Map.Entry<Object, Node> victim = victim(now);
+                    if (victim == null) {
+                        break;
+                    }
+                    map.remove(victim.getKey());
+                    evicted.add(new AbstractMap.SimpleImmutableEntry<>(victim.getKey(), victim.getValue().value));
+                }
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+            return evicted;
+        }
+
+        void remove(Object key) {
+            long stamp = lock.writeLock();
+            try {
+                map.remove(key);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        void clear() {
+            long stamp = lock.writeLock();
+            try {
+                map.clear();
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        int size() {
+            long stamp = lock.readLock();
+            try {
+                return map.size();
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+
+        void copyTo(long now, List<Map.Entry<Object, Object>> list) {
+            long stamp = lock.readLock();
+            try {
+                for (Map.Entry<Object, Node> e : map.entrySet()) {
+                    if (!e.getValue().isExpired(now)) {
+                        list.add(new AbstractMap.SimpleImmutableEntry<>(e.getKey(), e.getValue().value));
+                    }
+                }
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+    }
+}
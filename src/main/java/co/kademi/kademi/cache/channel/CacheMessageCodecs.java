@@ -0,0 +1,292 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache.channel;
+
+import co.kademi.kademi.cache.KademiRegionFactory.BroadcastMessage;
+import co.kademi.kademi.channel.MessageCodec;
+import co.kademi.kademi.channel.MessageRegistry;
+import static co.kademi.kademi.channel.MessageRegistry.readString;
+import static co.kademi.kademi.channel.MessageRegistry.readValue;
+import static co.kademi.kademi.channel.MessageRegistry.sizeOfString;
+import static co.kademi.kademi.channel.MessageRegistry.sizeOfUTF;
+import static co.kademi.kademi.channel.MessageRegistry.sizeOfValue;
+import static co.kademi.kademi.channel.MessageRegistry.writeString;
+import static co.kademi.kademi.channel.MessageRegistry.writeValue;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Binary codecs for the cache's messages. Snapshot sync replies are rare, but
+ * use the same encoding for their items as invalidation batches so they can
+ * be split to fit within the channel's frame limit
+ *
+ * Type ids 20 to 39 are reserved for the cache
+ *
+ * Registered by MessageRegistry when it loads
+ *
+ * @author brad
+ */
+public class CacheMessageCodecs {
+
+    private static final MessageCodec<InvalidateItemMessage> INVALIDATE_ITEM = new MessageCodec<InvalidateItemMessage>() {
+        @Override
+        public void write(InvalidateItemMessage msg, DataOutput out) throws IOException {
+            writeString(msg.getCacheName(), out);
+            writeValue(msg.getKey(), out);
+            writeValue(msg.getPartitionId(), out);
+            Set<String> spaces = msg.getSpaces();
+            if (spaces == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(spaces.size());
+                for (String s : spaces) {
+                    out.writeUTF(s);
+                }
+            }
+        }
+
+        @Override
+        public InvalidateItemMessage read(DataInput in) throws IOException {
+            String cacheName = readString(in);
+            Serializable key = readValue(in);
+            Serializable partitionId = readValue(in);
+            int numSpaces = in.readInt();
+            Set<String> spaces = null;
+            if (numSpaces >= 0) {
+                spaces = new HashSet<>();
+                for (int i = 0; i < numSpaces; i++) {
+                    spaces.add(in.readUTF());
+                }
+            }
+            return new InvalidateItemMessage(cacheName, key, partitionId, spaces);
+        }
+
+        @Override
+        public int estimateSize(InvalidateItemMessage msg) {
+            int size = sum(sizeOfString(msg.getCacheName()), sizeOfValue(msg.getKey()), sizeOfValue(msg.getPartitionId()), 4);
+            Set<String> spaces = msg.getSpaces();
+            if (spaces != null && size >= 0) {
+                for (String sp : spaces) {
+                    size += sizeOfUTF(sp);
+                }
+            }
+            return size;
+        }
+    };
+
+    public static void register() {
+        MessageRegistry.register(20, InvalidateItemMessage.class, INVALIDATE_ITEM);
+
+        MessageRegistry.register(21, InvalidateBatchMessage.class, new MessageCodec<InvalidateBatchMessage>() {
+            @Override
+            public void write(InvalidateBatchMessage msg, DataOutput out) throws IOException {
+                List<InvalidateItemMessage> items = msg.getItems();
+                out.writeInt(items.size());
+                for (InvalidateItemMessage item : items) {
+                    INVALIDATE_ITEM.write(item, out);
+                }
+            }
+
+            @Override
+            public InvalidateBatchMessage read(DataInput in) throws IOException {
+                int size = in.readInt();
+                List<InvalidateItemMessage> items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    items.add(INVALIDATE_ITEM.read(in));
+                }
+                return new InvalidateBatchMessage(items);
+            }
+
+            @Override
+            public int estimateSize(InvalidateBatchMessage msg) {
+                return sum(4, sizeOfItems(msg.getItems()));
+            }
+        });
+
+        MessageRegistry.register(22, InvalidateAllMessage.class, new MessageCodec<InvalidateAllMessage>() {
+            @Override
+            public void write(InvalidateAllMessage msg, DataOutput out) throws IOException {
+                writeString(msg.getCacheName(), out);
+                writeValue(msg.getPartitionId(), out);
+            }
+
+            @Override
+            public InvalidateAllMessage read(DataInput in) throws IOException {
+                return new InvalidateAllMessage(readString(in), readValue(in));
+            }
+
+            @Override
+            public int estimateSize(InvalidateAllMessage msg) {
+                return sum(sizeOfString(msg.getCacheName()), sizeOfValue(msg.getPartitionId()));
+            }
+        });
+
+        MessageRegistry.register(23, InvalidatePartitionMessage.class, new MessageCodec<InvalidatePartitionMessage>() {
+            @Override
+            public void write(InvalidatePartitionMessage msg, DataOutput out) throws IOException {
+                writeValue(msg.getPartitionId(), out);
+            }
+
+            @Override
+            public InvalidatePartitionMessage read(DataInput in) throws IOException {
+                return new InvalidatePartitionMessage(readValue(in));
+            }
+
+            @Override
+            public int estimateSize(InvalidatePartitionMessage msg) {
+                return sizeOfValue(msg.getPartitionId());
+            }
+        });
+
+        MessageRegistry.register(24, TimestampUpdateMessage.class, new MessageCodec<TimestampUpdateMessage>() {
+            @Override
+            public void write(TimestampUpdateMessage msg, DataOutput out) throws IOException {
+                writeString(msg.getCacheName(), out);
+                writeValue(msg.getPartitionId(), out);
+                writeValue(msg.getSpace(), out);
+                out.writeLong(msg.getUpdatedAt());
+                out.writeLong(msg.getValue());
+            }
+
+            @Override
+            public TimestampUpdateMessage read(DataInput in) throws IOException {
+                return new TimestampUpdateMessage(readString(in), readValue(in), readValue(in), in.readLong(), in.readLong());
+            }
+
+            @Override
+            public int estimateSize(TimestampUpdateMessage msg) {
+                return sum(sizeOfString(msg.getCacheName()), sizeOfValue(msg.getPartitionId()), sizeOfValue(msg.getSpace()), 16);
+            }
+        });
+
+        MessageRegistry.register(25, SoftLockMessage.class, new MessageCodec<SoftLockMessage>() {
+            @Override
+            public void write(SoftLockMessage msg, DataOutput out) throws IOException {
+                writeString(msg.getCacheName(), out);
+                writeValue(msg.getKey(), out);
+                out.writeBoolean(msg.isLocked());
+            }
+
+            @Override
+            public SoftLockMessage read(DataInput in) throws IOException {
+                return new SoftLockMessage(readString(in), readValue(in), in.readBoolean());
+            }
+
+            @Override
+            public int estimateSize(SoftLockMessage msg) {
+                return sum(sizeOfString(msg.getCacheName()), sizeOfValue(msg.getKey()), 1);
+            }
+        });
+
+        MessageRegistry.register(26, BroadcastMessage.class, new MessageCodec<BroadcastMessage>() {
+            @Override
+            public void write(BroadcastMessage msg, DataOutput out) throws IOException {
+                writeString(msg.getTopicName(), out);
+                writeValue(msg.getKey(), out);
+                writeValue(msg.getValue(), out);
+            }
+
+            @Override
+            public BroadcastMessage read(DataInput in) throws IOException {
+                return new BroadcastMessage(readString(in), readValue(in), readValue(in));
+            }
+
+            @Override
+            public int estimateSize(BroadcastMessage msg) {
+                return sum(sizeOfString(msg.getTopicName()), sizeOfValue(msg.getKey()), sizeOfValue(msg.getValue()));
+            }
+        });
+
+        MessageRegistry.register(27, SnapshotSyncRequest.class, new MessageCodec<SnapshotSyncRequest>() {
+            @Override
+            public void write(SnapshotSyncRequest msg, DataOutput out) throws IOException {
+                writeValue(msg.getRequestId(), out);
+                out.writeLong(msg.getSince());
+                writeString(msg.getMemberId(), out);
+            }
+
+            @Override
+            public SnapshotSyncRequest read(DataInput in) throws IOException {
+                return new SnapshotSyncRequest((UUID) readValue(in), in.readLong(), readString(in));
+            }
+
+            @Override
+            public int estimateSize(SnapshotSyncRequest msg) {
+                return sum(sizeOfValue(msg.getRequestId()), 8, sizeOfString(msg.getMemberId()));
+            }
+        });
+
+        MessageRegistry.register(28, SnapshotSyncReply.class, new MessageCodec<SnapshotSyncReply>() {
+            @Override
+            public void write(SnapshotSyncReply msg, DataOutput out) throws IOException {
+                writeValue(msg.getRequestId(), out);
+                writeString(msg.getMemberId(), out);
+                out.writeBoolean(msg.isComplete());
+                out.writeBoolean(msg.isLast());
+                List<InvalidateItemMessage> items = msg.getItems();
+                out.writeInt(items.size());
+                for (InvalidateItemMessage item : items) {
+                    INVALIDATE_ITEM.write(item, out);
+                }
+            }
+
+            @Override
+            public SnapshotSyncReply read(DataInput in) throws IOException {
+                UUID requestId = (UUID) readValue(in);
+                String memberId = readString(in);
+                boolean complete = in.readBoolean();
+                boolean last = in.readBoolean();
+                int size = in.readInt();
+                List<InvalidateItemMessage> items = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    items.add(INVALIDATE_ITEM.read(in));
+                }
+                return new SnapshotSyncReply(requestId, memberId, complete, last, items);
+            }
+
+            @Override
+            public int estimateSize(SnapshotSyncReply msg) {
+                return sum(sizeOfValue(msg.getRequestId()), sizeOfString(msg.getMemberId()), 6, sizeOfItems(msg.getItems()));
+            }
+        });
+    }
+
+    private static int sizeOfItems(List<InvalidateItemMessage> items) {
+        int size = 0;
+        for (InvalidateItemMessage item : items) {
+            int n = INVALIDATE_ITEM.estimateSize(item);
+            if (n < 0) {
+                return -1;
+            }
+            size += n;
+        }
+        return size;
+    }
+
+    /**
+     * Add up the sizes of a message's fields
+     *
+     * @return - the total, or -1 if any isnt known
+     */
+    private static int sum(int... sizes) {
+        int total = 0;
+        for (int n : sizes) {
+            if (n < 0) {
+                return -1;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    private CacheMessageCodecs() {
+    }
+}
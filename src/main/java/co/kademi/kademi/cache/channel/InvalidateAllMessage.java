@@ -6,25 +6,42 @@ package co.kademi.kademi.cache.channel;
 import java.io.Serializable;
 
 /**
+ * Flush a region, or just one partition of it
  *
  * @author brad
  */
 public class InvalidateAllMessage implements Serializable {
     private final String cacheName;
+    private final Serializable partitionId;
 
 
     public InvalidateAllMessage(String cacheName) {
+        this(cacheName, null);
+    }
+
+    /**
+     *
+     * @param cacheName
+     * @param partitionId - the partition to flush, or null to flush the whole
+     * region
+     */
+    public InvalidateAllMessage(String cacheName, Serializable partitionId) {
         this.cacheName = cacheName;
+        this.partitionId = partitionId;
     }
 
     public String getCacheName() {
         return cacheName;
     }
 
+    public Serializable getPartitionId() {
+        return partitionId;
+    }
+
 
     @Override
     public String toString() {
-        return "InvalidateAll: " + cacheName;
+        return "InvalidateAll: " + cacheName + (partitionId == null ? "" : "; partition=" + partitionId);
     }
 
 
@@ -0,0 +1,36 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache.channel;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * All the invalidations from one transaction commit, so peers get a single
+ * message instead of one per key, and can flush their query regions once per
+ * partition
+ *
+ * @author brad
+ */
+public class InvalidateBatchMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<InvalidateItemMessage> items;
+
+    public InvalidateBatchMessage(List<InvalidateItemMessage> items) {
+        this.items = new ArrayList<>(items);
+    }
+
+    public List<InvalidateItemMessage> getItems() {
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return "InvalidateBatch: items=" + items.size();
+    }
+
+}
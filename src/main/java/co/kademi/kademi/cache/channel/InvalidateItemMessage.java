@@ -4,6 +4,7 @@
 package co.kademi.kademi.cache.channel;
 
 import java.io.Serializable;
+import java.util.Set;
 
 /**
  *
@@ -11,19 +12,37 @@ import java.io.Serializable;
  */
 public class InvalidateItemMessage implements Serializable {
     private final String cacheName;
-    private final String key;
+    private final Serializable key;
     private final Serializable partitionId;
+    private final Set<String> spaces;
 
     public InvalidateItemMessage() {
         this.cacheName = null;
         this.key = null;
         this.partitionId = null;
+        this.spaces = null;
     }
 
-    public InvalidateItemMessage(String cacheName, String key, Serializable partitionId) {
+    public InvalidateItemMessage(String cacheName, Serializable key, Serializable partitionId) {
+        this(cacheName, key, partitionId, null);
+    }
+
+    /**
+     *
+     * @param cacheName
+     * @param key
+     * @param partitionId
+     * @param spaces - query spaces (ie tables) changed, so query results
+     * which depend on them must be invalidated. Empty if no query results
+     * need invalidating for this message, or null if the spaces are unknown
+     * so all query results in the partition must be invalidated. Must be
+     * serializable
+     */
+    public InvalidateItemMessage(String cacheName, Serializable key, Serializable partitionId, Set<String> spaces) {
         this.cacheName = cacheName;
         this.key = key;
         this.partitionId = partitionId;
+        this.spaces = spaces;
     }
 
     public String getCacheName() {
@@ -38,11 +57,15 @@ public class InvalidateItemMessage implements Serializable {
         return partitionId;
     }
 
+    public Set<String> getSpaces() {
+        return spaces;
+    }
+
 
 
     @Override
     public String toString() {
-        return "Invalidate: cache=" + cacheName + "; key=" + key + "; partition=" + partitionId;
+        return "Invalidate: cache=" + cacheName + "; key=" + key + "; partition=" + partitionId + (spaces == null ? "" : "; spaces=" + spaces);
     }
 
 
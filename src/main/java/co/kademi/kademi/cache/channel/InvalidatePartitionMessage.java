@@ -0,0 +1,33 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache.channel;
+
+import java.io.Serializable;
+
+/**
+ * Drop everything cached for a partition (ie tenant), in every region, eg
+ * when the tenant is deleted or restored from a backup
+ *
+ * @author brad
+ */
+public class InvalidatePartitionMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Serializable partitionId;
+
+    public InvalidatePartitionMessage(Serializable partitionId) {
+        this.partitionId = partitionId;
+    }
+
+    public Serializable getPartitionId() {
+        return partitionId;
+    }
+
+    @Override
+    public String toString() {
+        return "InvalidatePartition: " + partitionId;
+    }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache.channel;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A peer's answer to a SnapshotSyncRequest. Contains the invalidations the
+ * peer has made since the requested time. If the peer's history doesnt go back
+ * that far then complete is false, and the requesting node must not trust its
+ * snapshot
+ *
+ * The invalidations are split over as many replies as needed to keep each
+ * under the channel's frame limit. The requesting node only knows it has
+ * everything from a peer once it has the reply with last set
+ *
+ * @author brad
+ */
+public class SnapshotSyncReply implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final UUID requestId;
+    private final String memberId;
+    private final boolean complete;
+    private final boolean last;
+    private final ArrayList<InvalidateItemMessage> items;
+
+    /**
+     *
+     * @param requestId
+     * @param memberId - the channel member id of the replying peer
+     * @param complete - false if the peer's history doesnt go back to the
+     * requested time
+     * @param last - true if this is the peer's last reply for the request
+     * @param items
+     */
+    public SnapshotSyncReply(UUID requestId, String memberId, boolean complete, boolean last, List<InvalidateItemMessage> items) {
+        this.requestId = requestId;
+        this.memberId = memberId;
+        this.complete = complete;
+        this.last = last;
+        this.items = new ArrayList<>(items);
+    }
+
+    public UUID getRequestId() {
+        return requestId;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isLast() {
+        return last;
+    }
+
+    public List<InvalidateItemMessage> getItems() {
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotSyncReply: id=" + requestId + "; from=" + memberId + "; complete=" + complete + "; last=" + last + "; items=" + items.size();
+    }
+
+}
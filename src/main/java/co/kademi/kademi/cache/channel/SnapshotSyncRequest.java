@@ -0,0 +1,54 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache.channel;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+/**
+ * Sent by a node which is restoring a cache snapshot, to ask its peers for
+ * the invalidations they have made since the snapshot was taken. Peers reply
+ * to the requesting member only
+ *
+ * @author brad
+ */
+public class SnapshotSyncRequest implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final UUID requestId;
+    private final long since;
+    private final String memberId;
+
+    /**
+     *
+     * @param requestId
+     * @param since
+     * @param memberId - the channel member id of the requesting node, which
+     * replies are sent to
+     */
+    public SnapshotSyncRequest(UUID requestId, long since, String memberId) {
+        this.requestId = requestId;
+        this.since = since;
+        this.memberId = memberId;
+    }
+
+    public UUID getRequestId() {
+        return requestId;
+    }
+
+    public long getSince() {
+        return since;
+    }
+
+    public String getMemberId() {
+        return memberId;
+    }
+
+    @Override
+    public String toString() {
+        return "SnapshotSyncRequest: id=" + requestId + "; since=" + since + "; from=" + memberId;
+    }
+
+}
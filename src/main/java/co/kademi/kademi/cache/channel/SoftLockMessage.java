@@ -0,0 +1,46 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache.channel;
+
+import java.io.Serializable;
+
+/**
+ * Tells peers that a key (or the whole region, if the key is null) has been
+ * soft locked or unlocked by a READ_WRITE transaction, so they dont cache
+ * values for it which might be stale
+ *
+ * @author brad
+ */
+public class SoftLockMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String cacheName;
+    private final Serializable key;
+    private final boolean locked;
+
+    public SoftLockMessage(String cacheName, Serializable key, boolean locked) {
+        this.cacheName = cacheName;
+        this.key = key;
+        this.locked = locked;
+    }
+
+    public String getCacheName() {
+        return cacheName;
+    }
+
+    public Serializable getKey() {
+        return key;
+    }
+
+    public boolean isLocked() {
+        return locked;
+    }
+
+    @Override
+    public String toString() {
+        return (locked ? "SoftLock: cache=" : "SoftUnlock: cache=") + cacheName + "; key=" + key;
+    }
+
+}
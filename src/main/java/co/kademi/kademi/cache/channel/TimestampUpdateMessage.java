@@ -0,0 +1,66 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache.channel;
+
+import java.io.Serializable;
+
+/**
+ * Replicates an update to the timestamps region, ie hibernate recording that
+ * a query space (table) has changed, or is about to
+ *
+ * @author brad
+ */
+public class TimestampUpdateMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String cacheName;
+    private final Serializable partitionId;
+    private final Serializable space;
+    private final long updatedAt;
+    private final long value;
+
+    /**
+     *
+     * @param cacheName - the timestamps region
+     * @param partitionId
+     * @param space
+     * @param updatedAt - hybrid logical clock time of the update, which
+     * orders updates to the same space from different servers
+     * @param value - the timestamp hibernate put
+     */
+    public TimestampUpdateMessage(String cacheName, Serializable partitionId, Serializable space, long updatedAt, long value) {
+        this.cacheName = cacheName;
+        this.partitionId = partitionId;
+        this.space = space;
+        this.updatedAt = updatedAt;
+        this.value = value;
+    }
+
+    public String getCacheName() {
+        return cacheName;
+    }
+
+    public Serializable getPartitionId() {
+        return partitionId;
+    }
+
+    public Serializable getSpace() {
+        return space;
+    }
+
+    public long getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public long getValue() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "TimestampUpdate: cache=" + cacheName + "; space=" + space + "; partition=" + partitionId + "; value=" + value;
+    }
+
+}
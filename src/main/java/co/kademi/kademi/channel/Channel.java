@@ -1,6 +1,8 @@
 package co.kademi.kademi.channel;
 
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -29,8 +31,49 @@ public interface Channel extends Service {
      */
     void sendNotification( Serializable msg );
 
+    /**
+     * Send a message to one member of the cluster, identified by the id it
+     * gives from getMemberId. Channels which cant address a single member
+     * broadcast it
+     *
+     * @param memberId
+     * @param msg
+     */
+    default void sendNotification( String memberId, Serializable msg ) {
+        sendNotification(msg);
+    }
+
+    /**
+     * An id for this member which peers can send to, or null if the channel
+     * cant address a single member or doesnt know its own address yet
+     *
+     * @return
+     */
+    default String getMemberId() {
+        return null;
+    }
+
+    /**
+     * The ids of the members this channel currently sends to, ie those
+     * which will receive a broadcast
+     *
+     * @return
+     */
+    default Collection<String> getMemberIds() {
+        return Collections.emptyList();
+    }
+
     void registerListener( ChannelListener channelListener );
 
     void removeListener( ChannelListener channelListener );
 
+    /**
+     * Set how to shrink the messages queued for a peer when its send queue
+     * is full. Channels without bounded queues can ignore this
+     *
+     * @param collapser
+     */
+    default void setMessageCollapser( MessageCollapser collapser ) {
+    }
+
 }
@@ -0,0 +1,72 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.mina.core.service.IoHandlerAdapter;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.transport.socket.SocketSessionConfig;
+import org.apache.mina.transport.socket.nio.NioSocketConnector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The connector and threads shared by all TcpChannelClients of a channel, so
+ * the number of threads doesnt depend on the number of peers.
+ *
+ * Sockets are handled by one NioSocketConnector, with a fixed number of
+ * processor threads. Connection checks and sending queued messages run as
+ * short tasks on a small scheduler
+ *
+ * @author brad
+ */
+public class ClientEventLoop {
+
+    private static final Logger log = LoggerFactory.getLogger(ClientEventLoop.class);
+
+    private static final int PROCESSOR_THREADS = 2;
+    private static final int SCHEDULER_THREADS = 2;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+
+    private final NioSocketConnector connector;
+    private final ScheduledExecutorService scheduler;
+
+    public ClientEventLoop() {
+        connector = new NioSocketConnector(PROCESSOR_THREADS);
+        connector.getFilterChain().addLast("codec", new ProtocolCodecFilter(new FrameCodecFactory()));
+        connector.setConnectTimeoutMillis(CONNECT_TIMEOUT_MS);
+        connector.setHandler(new IoHandlerAdapter() {
+            @Override
+            public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+                log.warn("exceptionCaught: {} {}", session.getRemoteAddress(), cause.toString());
+            }
+        });
+        SocketSessionConfig sessionConf = connector.getSessionConfig();
+        sessionConf.setReuseAddress(true);
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory tf = r -> {
+            Thread t = new Thread(r, "TcpChannelClient-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS, tf);
+    }
+
+    public NioSocketConnector getConnector() {
+        return connector;
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    public void dispose() {
+        scheduler.shutdownNow();
+        connector.dispose();
+    }
+}
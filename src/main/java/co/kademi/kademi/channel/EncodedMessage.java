@@ -0,0 +1,123 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A message to be sent to one or more peers, shared by their send queues so
+ * it is only encoded once.
+ *
+ * Encoding is deferred until the first sender thread needs the bytes, so it
+ * doesnt happen on the thread which sent the notification. A queue still
+ * needs the size when the message is added, so that comes from the codec's
+ * estimate, or for messages whose codec cant tell (eg java serialized ones)
+ * by encoding on the sending thread. The encoded bytes are never modified
+ * once created.
+ *
+ * Each queue holding the message holds a reference, which it releases once
+ * the message is written or dropped. When the last reference is released the
+ * message and its bytes are cleared, so a queue entry which lingers (eg
+ * requeued to a disconnected peer) doesnt keep it alive
+ *
+ * @author brad
+ */
+public class EncodedMessage {
+
+    private final AtomicInteger refs;
+    private volatile Serializable msg;
+    private volatile byte[] data;
+    private volatile int size = -1;
+
+    /**
+     *
+     * @param msg
+     * @param refs - the number of queues it will be added to
+     */
+    public EncodedMessage(Serializable msg, int refs) {
+        this.msg = msg;
+        this.refs = new AtomicInteger(refs);
+    }
+
+    /**
+     * The encoded message, encoding it if this is the first call
+     *
+     * @return - null if all references have been released
+     */
+    public byte[] getData() {
+        byte[] d = data;
+        if (d == null) {
+            synchronized (this) {
+                d = data;
+                if (d == null) {
+                    Serializable m = msg;
+                    if (m == null) {
+                        return null;
+                    }
+                    d = MessageRegistry.encode(m);
+                    data = d;
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * The encoded size, so a queue can account for the message. Encodes the
+     * message if its codec cant give the size otherwise
+     *
+     * @return - the size, or 0 if the message has been released or cant be
+     * encoded, in which case the sender will drop it
+     */
+    public int size() {
+        int n = size;
+        if (n >= 0) {
+            return n;
+        }
+        byte[] d = data;
+        if (d != null) {
+            n = d.length;
+        } else {
+            Serializable m = msg;
+            if (m == null) {
+                return 0;
+            }
+            n = MessageRegistry.estimateSize(m);
+            if (n < 0) {
+                try {
+                    d = getData();
+                } catch (RuntimeException e) {
+                    return 0; // logged when the sender tries to encode it
+                }
+                n = d == null ? 0 : d.length;
+            }
+        }
+        size = n;
+        return n;
+    }
+
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    public void release() {
+        if (refs.decrementAndGet() == 0) {
+            synchronized (this) {
+                msg = null;
+                data = null;
+            }
+        }
+    }
+
+    public Serializable getMessage() {
+        return msg;
+    }
+
+    @Override
+    public String toString() {
+        Serializable m = msg;
+        return m == null ? "EncodedMessage(released)" : m.toString();
+    }
+}
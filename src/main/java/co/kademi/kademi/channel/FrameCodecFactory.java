@@ -0,0 +1,128 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import java.util.Collections;
+import java.util.List;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.session.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderException;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+
+/**
+ * Writes and reads messages, already encoded by MessageRegistry, in length
+ * prefixed frames. Unlike ObjectSerializationCodecFactory nothing is
+ * serialized a second time.
+ *
+ * A frame holds one or more messages, so a sender can write everything it
+ * has queued at once. Its layout is the frame length, then for each message
+ * its length and bytes. The encoder accepts a byte[] or a List of them, and
+ * the decoder outputs each message as a byte[]
+ *
+ * Frames are never more than MAX_FRAME_BYTES, which the decoder enforces. The
+ * encoder splits a list of messages over several frames if needed, and
+ * rejects a single message which is too big for a frame
+ *
+ * @author brad
+ */
+public class FrameCodecFactory implements ProtocolCodecFactory {
+
+    /**
+     * Same limit as ObjectSerializationCodecFactory's default
+     */
+    public static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+    private final ProtocolEncoder encoder = new FrameEncoder();
+    private final ProtocolDecoder decoder = new FrameDecoder();
+
+    @Override
+    public ProtocolEncoder getEncoder(IoSession session) throws Exception {
+        return encoder;
+    }
+
+    @Override
+    public ProtocolDecoder getDecoder(IoSession session) throws Exception {
+        return decoder;
+    }
+
+    private static class FrameEncoder extends ProtocolEncoderAdapter {
+
+        @Override
+        public void encode(IoSession session, Object message, ProtocolEncoderOutput out) throws Exception {
+            List<byte[]> messages;
+            if (message instanceof byte[]) {
+                messages = Collections.singletonList((byte[]) message);
+            } else {
+                // TcpChannelClient only ever writes byte[] or List<byte[]>
+                @SuppressWarnings("unchecked")
+                List<byte[]> batch = (List<byte[]>) message;
+                messages = batch;
+            }
+            for (byte[] data : messages) {
+                if (4 + data.length > MAX_FRAME_BYTES) {
+                    throw new ProtocolEncoderException("Message of " + data.length + " bytes exceeds the frame limit of " + MAX_FRAME_BYTES);
+                }
+            }
+            int start = 0;
+            int length = 0;
+            for (int i = 0; i < messages.size(); i++) {
+                int size = 4 + messages.get(i).length;
+                if (length + size > MAX_FRAME_BYTES) {
+                    writeFrame(messages.subList(start, i), length, out);
+                    start = i;
+                    length = 0;
+                }
+                length += size;
+            }
+            writeFrame(messages.subList(start, messages.size()), length, out);
+        }
+
+        private void writeFrame(List<byte[]> messages, int length, ProtocolEncoderOutput out) {
+            IoBuffer buf = IoBuffer.allocate(4 + length, false);
+            buf.putInt(length);
+            for (byte[] data : messages) {
+                buf.putInt(data.length);
+                buf.put(data);
+            }
+            buf.flip();
+            out.write(buf);
+        }
+    }
+
+    private static class FrameDecoder extends CumulativeProtocolDecoder {
+
+        @Override
+        protected boolean doDecode(IoSession session, IoBuffer in, ProtocolDecoderOutput out) throws Exception {
+            if (in.remaining() < 4) {
+                return false;
+            }
+            int length = in.getInt(in.position());
+            if (length < 0 || length > MAX_FRAME_BYTES) {
+                throw new ProtocolDecoderException("Invalid frame length: " + length);
+            }
+            if (in.remaining() < 4 + length) {
+                return false;
+            }
+            in.getInt();
+            int end = in.position() + length;
+            while (in.position() < end) {
+                int size = in.getInt();
+                if (size < 0 || in.position() + size > end) {
+                    throw new ProtocolDecoderException("Invalid message length: " + size);
+                }
+                byte[] data = new byte[size];
+                in.get(data);
+                out.write(data);
+            }
+            return true;
+        }
+    }
+}
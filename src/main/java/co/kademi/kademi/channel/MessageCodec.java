@@ -0,0 +1,35 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * Writes and reads the fields of one type of message, for messages sent often
+ * enough that java serialization's overhead matters. See MessageRegistry
+ *
+ * @author brad
+ * @param <T>
+ */
+public interface MessageCodec<T extends Serializable> {
+
+    void write(T msg, DataOutput out) throws IOException;
+
+    T read(DataInput in) throws IOException;
+
+    /**
+     * The number of bytes write would produce, if that can be worked out
+     * without encoding, eg so a send queue can account for the message
+     * before it is encoded
+     *
+     * @param msg
+     * @return - the size, or -1 if it isnt known
+     */
+    default int estimateSize(T msg) {
+        return -1;
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Used when a peer's send queue is full, to replace the messages queued for
+ * it with fewer messages which have the same effect when received, eg many
+ * invalidations with a flush
+ *
+ * @author brad
+ */
+public interface MessageCollapser {
+
+    /**
+     *
+     * @param messages - queued messages, oldest first
+     * @return - the messages to send instead, in the order to send them.
+     * Messages the collapser doesnt know about must be returned unchanged
+     */
+    List<Serializable> collapse(List<Serializable> messages);
+}
@@ -0,0 +1,366 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import co.kademi.kademi.cache.channel.CacheMessageCodecs;
+import co.kademi.kademi.channel.map.DistributedMap;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.lang.SerializationException;
+import org.apache.commons.lang.SerializationUtils;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.type.IntegerType;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.hibernate.type.Type;
+
+/**
+ * Encodes channel messages into a compact binary form.
+ *
+ * Each encoded message starts with a format version byte and a type id.
+ * Message types registered here are written field by field by their
+ * MessageCodec, anything else is written with java serialization (type id
+ * 0). Values inside messages, such as keys and partition ids, are written
+ * with writeValue, which has compact forms for common types and falls back
+ * to java serialization for the rest. Hibernate CacheKeys whose ids are
+ * longs, ints or strings are written as their name, tenant and id, and
+ * rebuilt with the matching basic type.
+ *
+ * Type ids are part of the wire format, so must be the same on all servers
+ * and must never be reused for a different type. A server receiving a type
+ * id it doesnt know will reject the message, so the map and cache message
+ * types are all registered when this class is loaded, before any channel can
+ * encode or decode a message, rather than by the classes which send them
+ *
+ * @author brad
+ */
+public class MessageRegistry {
+
+    public static final byte VERSION = 1;
+
+    private static final int JAVA_SERIALIZED = 0;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte UUID_VALUE = 4;
+    private static final byte BOOLEAN = 5;
+    private static final byte SERIALIZED = 6;
+    private static final byte CACHE_KEY = 7;
+
+    private static final Map<Class<?>, Registration<?>> byClass = new ConcurrentHashMap<>();
+    private static final Map<Integer, Registration<?>> byTypeId = new ConcurrentHashMap<>();
+
+    static {
+        DistributedMap.registerCodecs();
+        CacheMessageCodecs.register();
+    }
+
+    /**
+     * Register a message type. Registering the same type again with the same
+     * id does nothing
+     *
+     * @param <T>
+     * @param typeId - 1 to 65535
+     * @param type
+     * @param codec
+     */
+    public static synchronized <T extends Serializable> void register(int typeId, Class<? super T> type, MessageCodec<T> codec) {
+        if (typeId <= JAVA_SERIALIZED || typeId > 0xFFFF) {
+            throw new IllegalArgumentException("Invalid type id: " + typeId);
+        }
+        Registration<?> existing = byTypeId.get(typeId);
+        if (existing != null) {
+            if (existing.type == type) {
+                return;
+            }
+            throw new IllegalStateException("Type id " + typeId + " is already registered to " + existing.type);
+        }
+        if (byClass.containsKey(type)) {
+            throw new IllegalStateException("Type " + type + " is already registered with type id " + byClass.get(type).typeId);
+        }
+        Registration<T> r = new Registration<>(typeId, type, codec);
+        byTypeId.put(typeId, r);
+        byClass.put(type, r);
+    }
+
+    public static boolean isRegistered(Class<?> type) {
+        return byClass.containsKey(type);
+    }
+
+    public static byte[] encode(Serializable msg) {
+        try {
+            ByteArrayOutputStream bout = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bout);
+            out.writeByte(VERSION);
+            Registration<?> r = byClass.get(msg.getClass());
+            if (r == null) {
+                out.writeShort(JAVA_SERIALIZED);
+                SerializationUtils.serialize(msg, out);
+            } else {
+                out.writeShort(r.typeId);
+                r.write(msg, out);
+            }
+            out.flush();
+            return bout.toByteArray();
+        } catch (IOException ex) {
+            throw new SerializationException(ex);
+        }
+    }
+
+    /**
+     * The size encode would return, without encoding, if the message's codec
+     * can tell
+     *
+     * @param msg
+     * @return - the size, or -1 if it isnt known, eg for java serialized
+     * messages
+     */
+    public static int estimateSize(Serializable msg) {
+        Registration<?> r = byClass.get(msg.getClass());
+        if (r == null) {
+            return -1;
+        }
+        int size = r.estimateSize(msg);
+        return size < 0 ? -1 : 3 + size; // version and type id
+    }
+
+    public static Serializable decode(byte[] data) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int version = in.readUnsignedByte();
+            if (version != VERSION) {
+                throw new SerializationException("Unsupported message format version: " + version);
+            }
+            int typeId = in.readUnsignedShort();
+            if (typeId == JAVA_SERIALIZED) {
+                return (Serializable) SerializationUtils.deserialize(in);
+            }
+            Registration<?> r = byTypeId.get(typeId);
+            if (r == null) {
+                throw new SerializationException("Unknown message type id: " + typeId);
+            }
+            return r.codec.read(in);
+        } catch (IOException ex) {
+            throw new SerializationException(ex);
+        }
+    }
+
+    /**
+     * Write a nullable string
+     *
+     * @param s
+     * @param out
+     * @throws IOException
+     */
+    public static void writeString(String s, DataOutput out) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    /**
+     * The number of bytes writeString writes for the string
+     *
+     * @param s
+     * @return
+     */
+    public static int sizeOfString(String s) {
+        return s == null ? 1 : 1 + sizeOfUTF(s);
+    }
+
+    /**
+     * The number of bytes DataOutput.writeUTF writes for the string
+     *
+     * @param s
+     * @return
+     */
+    public static int sizeOfUTF(String s) {
+        return 2 + utfLength(s);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * Write a value of any serializable type, eg a cache key. Strings,
+     * numbers and uuids are written compactly, anything else with java
+     * serialization
+     *
+     * @param value
+     * @param out
+     * @throws IOException
+     */
+    public static void writeValue(Object value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        } else if (value instanceof String && ((String) value).length() < 16 * 1024) {
+            out.writeByte(STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        } else if (value instanceof UUID) {
+            UUID u = (UUID) value;
+            out.writeByte(UUID_VALUE);
+            out.writeLong(u.getMostSignificantBits());
+            out.writeLong(u.getLeastSignificantBits());
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof CacheKey && isCompact((CacheKey) value)) {
+            CacheKey ck = (CacheKey) value;
+            out.writeByte(CACHE_KEY);
+            writeString(ck.getEntityOrRoleName(), out);
+            writeString(ck.getTenantId(), out);
+            writeValue(ck.getKey(), out);
+        } else {
+            byte[] arr = SerializationUtils.serialize((Serializable) value);
+            out.writeByte(SERIALIZED);
+            out.writeInt(arr.length);
+            out.write(arr);
+        }
+    }
+
+    /**
+     * The number of bytes writeValue writes for the value
+     *
+     * @param value
+     * @return - the size, or -1 if the value would be java serialized
+     */
+    public static int sizeOfValue(Object value) {
+        if (value == null) {
+            return 1;
+        } else if (value instanceof String && ((String) value).length() < 16 * 1024) {
+            return 1 + sizeOfUTF((String) value);
+        } else if (value instanceof Long) {
+            return 9;
+        } else if (value instanceof Integer) {
+            return 5;
+        } else if (value instanceof UUID) {
+            return 17;
+        } else if (value instanceof Boolean) {
+            return 2;
+        } else if (value instanceof CacheKey && isCompact((CacheKey) value)) {
+            CacheKey ck = (CacheKey) value;
+            return 1 + sizeOfString(ck.getEntityOrRoleName()) + sizeOfString(ck.getTenantId()) + sizeOfValue(ck.getKey());
+        }
+        return -1;
+    }
+
+    /**
+     * Whether the key can be written as its parts, ie its id has a basic
+     * type we can rebuild it with. CacheKey doesnt expose its type, so check
+     * the hash it was given is what the basic type would give, in case the
+     * id is mapped with some other type
+     */
+    private static boolean isCompact(CacheKey ck) {
+        Serializable id = ck.getKey();
+        if (id instanceof String) {
+            if (((String) id).length() >= 16 * 1024) {
+                return false;
+            }
+        } else if (!(id instanceof Long || id instanceof Integer)) {
+            return false;
+        }
+        String tenantId = ck.getTenantId();
+        return ck.hashCode() == 31 * id.hashCode() + (tenantId == null ? 0 : tenantId.hashCode());
+    }
+
+    private static Type basicType(Serializable id) throws IOException {
+        if (id instanceof Long) {
+            return LongType.INSTANCE;
+        } else if (id instanceof Integer) {
+            return IntegerType.INSTANCE;
+        } else if (id instanceof String) {
+            return StringType.INSTANCE;
+        }
+        throw new IOException("Unsupported cache key id: " + id);
+    }
+
+    /**
+     * The length of the string in modified UTF-8, as written by writeUTF
+     */
+    private static int utfLength(String s) {
+        int len = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == 0 || c >= 0x80) {
+                len += c >= 0x800 ? 2 : 1;
+            }
+        }
+        return len;
+    }
+
+    public static Serializable readValue(DataInput in) throws IOException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readUTF();
+            case LONG:
+                return in.readLong();
+            case INTEGER:
+                return in.readInt();
+            case UUID_VALUE:
+                return new UUID(in.readLong(), in.readLong());
+            case BOOLEAN:
+                return in.readBoolean();
+            case CACHE_KEY:
+                String name = readString(in);
+                String tenantId = readString(in);
+                Serializable id = readValue(in);
+                return new CacheKey(id, basicType(id), name, tenantId, null);
+            case SERIALIZED:
+                byte[] arr = new byte[in.readInt()];
+                in.readFully(arr);
+                return (Serializable) SerializationUtils.deserialize(arr);
+            default:
+                throw new IOException("Unknown value tag: " + tag);
+        }
+    }
+
+    private static class Registration<T extends Serializable> {
+
+        private final int typeId;
+        private final Class<? super T> type;
+        private final MessageCodec<T> codec;
+
+        Registration(int typeId, Class<? super T> type, MessageCodec<T> codec) {
+            this.typeId = typeId;
+            this.type = type;
+            this.codec = codec;
+        }
+
+        /**
+         * Only called with messages looked up by their class, so the cast
+         * always holds
+         */
+        @SuppressWarnings("unchecked")
+        void write(Serializable msg, DataOutputStream out) throws IOException {
+            codec.write((T) msg, out);
+        }
+
+        @SuppressWarnings("unchecked")
+        int estimateSize(Serializable msg) {
+            return codec.estimateSize((T) msg);
+        }
+    }
+}
@@ -3,22 +3,22 @@ package co.kademi.kademi.channel;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
-import org.apache.commons.lang.SerializationUtils;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.mina.core.future.ConnectFuture;
-import org.apache.mina.core.service.IoHandler;
-import org.apache.mina.core.session.IdleStatus;
 import org.apache.mina.core.session.IoSession;
-import org.apache.mina.filter.FilterEvent;
-import org.apache.mina.filter.codec.ProtocolCodecFilter;
-import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
-import org.apache.mina.transport.socket.SocketSessionConfig;
-import org.apache.mina.transport.socket.nio.NioSocketConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -26,33 +26,78 @@ import org.slf4j.LoggerFactory;
  * A client sends messages to a hub. It never receives messages. It connects to
  * a single hub.
  *
+ * Clients dont have their own threads, they share the connector and
+ * scheduler of a ClientEventLoop. Queued messages are sent by a task which
+ * is scheduled when there is something to send, and at most one such task
+ * runs at a time for a client
+ *
  * @author brad
  */
-public class TcpChannelClient implements LocalAddressAccessor, IoHandler {
+public class TcpChannelClient implements LocalAddressAccessor {
 
     private static final Logger log = LoggerFactory.getLogger(TcpChannelClient.class);
 
     private static final int MAX_CONNECTION_ATTEMPTS = 3;
 
+    /**
+     * Stop adding queued messages to a frame once it has this many bytes.
+     * The sender never waits for more messages, so latency is bounded by
+     * one write
+     */
+    private static final int MAX_BATCH_BYTES = 64 * 1024;
+
+    /**
+     * Stop handing frames to the session while it has this much not yet
+     * written to the socket, so a slow peer's backlog stays in our queue
+     * where it can be collapsed
+     */
+    private static final int MAX_SCHEDULED_WRITE_BYTES = 1024 * 1024;
+
+    /**
+     * Frames to write before giving the scheduler thread to other clients
+     */
+    private static final int MAX_FRAMES_PER_RUN = 16;
+
+    private static final long BACKOFF_MS = 10;
+
+    public static final long DEFAULT_MAX_QUEUE_BYTES = 16 * 1024 * 1024;
+
     private final InetAddress hubAddress;
     private final int hubPort;
     private final List<ChannelListener> channelListeners;
-    private boolean running;
+    private volatile boolean running;
     private ClientMessageFilter filter = null;
     private final Runnable onLostConnection;
+    private final ClientEventLoop eventLoop;
     /**
      * Keeps checking for a connection
      */
-    private Thread thMonitor;
-    private Thread thSender;
-    private LinkedBlockingQueue<QueuedMessage> sendQueue = new LinkedBlockingQueue<>();
-    private NioSocketConnector connector;
-    private IoSession session;
+    private ScheduledFuture<?> monitor;
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private final AtomicInteger sendSignals = new AtomicInteger();
+    private final AtomicBoolean retryScheduled = new AtomicBoolean();
+    private long collapsedBytes;
+    private final LinkedBlockingDeque<QueuedMessage> sendQueue = new LinkedBlockingDeque<>();
+    private volatile IoSession session;
     private Long lastMessageTime;
 
     private int connectFailedCount;
 
-    public TcpChannelClient(InetAddress hubAddress, int hubPort, List<ChannelListener> channelListeners, Runnable onLostConnection) {
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder messagesSent = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder queueLatencyNanos = new LongAdder();
+    private final AtomicLong maxQueueLatencyNanos = new AtomicLong();
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile long maxQueueBytes = DEFAULT_MAX_QUEUE_BYTES;
+    private volatile MessageCollapser messageCollapser;
+    private final LongAdder queueOverflows = new LongAdder();
+    private final LongAdder messagesCollapsed = new LongAdder();
+    private final LongAdder messagesDropped = new LongAdder();
+
+    public TcpChannelClient(InetAddress hubAddress, int hubPort, List<ChannelListener> channelListeners, ClientEventLoop eventLoop, Runnable onLostConnection) {
+        this.eventLoop = eventLoop;
         this.hubAddress = hubAddress;
         this.hubPort = hubPort;
         this.channelListeners = channelListeners;
@@ -69,6 +114,24 @@ public class TcpChannelClient implements LocalAddressAccessor, IoHandler {
             map.put("lastMessageTime", new Date(lastMessageTime));
         }
         map.put("connectFailedCount", connectFailedCount);
+        map.put("sendQueueSize", sendQueue.size());
+        map.put("sendQueueBytes", queuedBytes.get());
+        map.put("maxQueueBytes", maxQueueBytes);
+        map.put("queueOverflows", queueOverflows.sum());
+        map.put("messagesCollapsed", messagesCollapsed.sum());
+        map.put("messagesDropped", messagesDropped.sum());
+        long frames = framesSent.sum();
+        long messages = messagesSent.sum();
+        map.put("framesSent", frames);
+        map.put("messagesSent", messages);
+        map.put("bytesSent", bytesSent.sum());
+        if (frames > 0) {
+            map.put("messagesPerFrame", (double) messages / frames);
+        }
+        if (messages > 0) {
+            map.put("avgQueueLatencyMs", (double) TimeUnit.NANOSECONDS.toMicros(queueLatencyNanos.sum() / messages) / 1000);
+        }
+        map.put("maxQueueLatencyMs", TimeUnit.NANOSECONDS.toMillis(maxQueueLatencyNanos.get()));
         return map;
     }
 
@@ -83,28 +146,75 @@ public class TcpChannelClient implements LocalAddressAccessor, IoHandler {
     public void start() {
         log.warn("start: address={} port={}" + this.hubAddress, hubPort);
         running = true;
-
-        thSender = new Thread(new QueueSender(), "TcpChannelClientSender");
-        thSender.setDaemon(true);
-
-        thMonitor = new Thread(new ConnectionMonitor(), "TcpChannelClientMonitor");
-        thMonitor.setDaemon(true);
-
-        thSender.start();
-        thMonitor.start();
+        monitor = eventLoop.getScheduler().scheduleWithFixedDelay(this::checkConnection, 0, 1, TimeUnit.SECONDS);
     }
 
     public void stop() {
         log.warn("stop: " + this.getClass().getCanonicalName());
         running = false;
-        thSender.interrupt();
-        thMonitor.interrupt();
+        if( monitor != null ) {
+            monitor.cancel(false);
+        }
         disconnect();
     }
 
     public void sendNotification(Serializable msg) {
 //        log.debug( "sendNotification: " + msg.getClass() + " queue: " + sendQueue.size() );
-        sendQueue.add(new QueuedMessage(null, msg));
+        sendNotification(new EncodedMessage(msg, 1));
+    }
+
+    /**
+     * Queue a message which may be shared with other clients. The queue now
+     * owns one of its references
+     *
+     * @param msg
+     */
+    public void sendNotification(EncodedMessage msg) {
+        QueuedMessage qm = new QueuedMessage(null, msg);
+        sendQueue.add(qm);
+        queuedBytes.addAndGet(qm.charge);
+        signalSender();
+    }
+
+    /**
+     * Make sure the sender runs after this call. If it is already running
+     * it will go round again, so only one sender runs at a time
+     */
+    private void signalSender() {
+        if( sendSignals.getAndIncrement() == 0 ) {
+            try {
+                eventLoop.getScheduler().execute(this::runSender);
+            } catch( RejectedExecutionException e ) {
+                sendSignals.set(0); // shutting down
+            }
+        }
+    }
+
+    private void signalSenderLater() {
+        if( retryScheduled.compareAndSet(false, true) ) {
+            eventLoop.getScheduler().schedule(() -> {
+                retryScheduled.set(false);
+                signalSender();
+            }, BACKOFF_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Used to shrink the queue when it exceeds maxQueueBytes. If null the
+     * queue is not bounded
+     *
+     * @param messageCollapser
+     */
+    public void setMessageCollapser(MessageCollapser messageCollapser) {
+        this.messageCollapser = messageCollapser;
+    }
+
+    public void setMaxQueueBytes(long maxQueueBytes) {
+        this.maxQueueBytes = maxQueueBytes;
+    }
+
+    public long getMaxQueueBytes() {
+        return maxQueueBytes;
     }
 //
 //    public void sendNotification(UUID destination, Serializable msg) {
@@ -142,71 +252,62 @@ public class TcpChannelClient implements LocalAddressAccessor, IoHandler {
         return (InetSocketAddress) session.getLocalAddress();
     }
 
-    private synchronized boolean isConnected() {
-        return session != null && session.isConnected() && session.getRemoteAddress() != null;
+    private boolean isConnected() {
+        IoSession s = session;
+        return s != null && s.isConnected() && s.getRemoteAddress() != null;
+    }
+
+    private void checkConnection() {
+        if( !running ) {
+            return;
+        }
+        if( isConnected() ) {
+            log.trace("still connected to {}:{}", hubAddress, hubPort);
+        } else if( connecting.compareAndSet(false, true) ) {
+            connect();
+        }
     }
 
-    private synchronized void connect() {
-        boolean didConnect = false;
+    /**
+     * Start connecting, the result is handled on a connector thread
+     */
+    private void connect() {
         log.info("attempt to connect to: " + hubAddress + ":" + hubPort);
-        try {
-            connector = new NioSocketConnector();
-            connector.getFilterChain().addLast("codec",
-                    new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));
-            connector.setHandler(this);
-            SocketSessionConfig sessionConf = (SocketSessionConfig) connector.getSessionConfig();
-            sessionConf.setReuseAddress(true);
-            InetSocketAddress add = new InetSocketAddress(hubAddress, hubPort);
-            ConnectFuture future = connector.connect(add);
-            if( future.await(5000) ) {
-                try {
+        InetSocketAddress add = new InetSocketAddress(hubAddress, hubPort);
+        eventLoop.getConnector().connect(add).addListener((ConnectFuture future) -> {
+            try {
+                if( future.isConnected() ) {
                     session = future.getSession();
-                } catch( Exception e ) {
+                    if( !running ) {
+                        disconnect();
+                    }
+                    signalSender();
+                } else {
                     session = null;
-                    log.warn("Failed to connect to: " + hubAddress + ":" + hubPort);
+                    Throwable e = future.getException();
+                    log.warn("Failed to connect to: " + hubAddress + ":" + hubPort + (e == null ? "" : ". ex: " + e.toString()));
                     connectFailedCount++;
+                    if( connectFailedCount > MAX_CONNECTION_ATTEMPTS && onLostConnection != null && running ) {
+                        running = false;
+                        monitor.cancel(false);
+                        onLostConnection.run();
+                    }
                 }
-            } else {
-                session = null;
-                log.warn("Failed to connect to: " + hubAddress + ":" + hubPort);
-                connectFailedCount++;
-            }
-
-        } catch( InterruptedException ex ) {
-            session = null;
-            log.warn("Failed to connect to: " + hubAddress + ":" + hubPort + ". ex: " + ex.toString());
-            connectFailedCount++;
-        }
-        if( didConnect ) {
-            try {
-                connectFailedCount = 0;
-                notifyConnected();
-            } catch( Exception e ) {
-                log.error("exception in notifyConnected", e);
+            } finally {
+                connecting.set(false);
             }
-        }
+        });
     }
 
-    private synchronized void disconnect() {
+    private void disconnect() {
         log.info("disconnect");
-        if( session != null ) {
-            session.closeNow();
+        IoSession s = session;
+        if( s != null ) {
+            s.closeNow();
         }
         session = null;
     }
 
-    private void notifyConnected() {
-        log.debug("notifyConnected");
-        for( ChannelListener l : channelListeners ) {
-            try {
-                //filter.onConnect(l);
-                l.onConnect(null, hubAddress);
-            } catch( Exception e ) {
-                log.error("Exception in memberRemoved listener: " + l.getClass(), e);
-            }
-        }
-    }
-
     @Override
     public String toString() {
 
@@ -218,130 +319,177 @@ public class TcpChannelClient implements LocalAddressAccessor, IoHandler {
         return s;
     }
 
-    @Override
-    public void sessionCreated(IoSession session) throws Exception {
-
-    }
-
-    @Override
-    public void sessionOpened(IoSession session) throws Exception {
-
-    }
-
-    @Override
-    public void sessionClosed(IoSession session) throws Exception {
-
-    }
-
-    @Override
-    public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
-
-    }
-
-    @Override
-    public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
-
-    }
-
-    @Override
-    public void messageReceived(IoSession session, Object message) throws Exception {
-
-    }
-
-    @Override
-    public void messageSent(IoSession session, Object message) throws Exception {
-
-    }
-
-    @Override
-    public void inputClosed(IoSession is) throws Exception {
-
-    }
-
-    @Override
-    public void event(IoSession is, FilterEvent fe) throws Exception {
-
-    }
-
-    private String sizeOf(LinkedBlockingQueue<QueuedMessage> sendQueue) {
+    private String sizeOf(LinkedBlockingDeque<QueuedMessage> sendQueue) {
         if( sendQueue == null ) {
             return "(null)";
         }
         return sendQueue.size() + "";
     }
 
-    private class ConnectionMonitor implements Runnable {
-
-        @Override
-        public void run() {
+    private void runSender() {
+        int signals = sendSignals.get();
+        while( true ) {
             try {
-                while( running ) {
-                    if( !isConnected() ) {
-                        connect();
-
-                        if( connectFailedCount > MAX_CONNECTION_ATTEMPTS ) {
-                            if( onLostConnection != null ) {
-                                running = false;
-                                onLostConnection.run();
-                            }
-                        }
-                    } else {
-                        log.trace("still connected to {}:{}", hubAddress, hubPort);
-                    }
-                    if( running ) {
-                        Thread.sleep(1000);
-                    }
+                if( sendQueued() ) {
+                    // more to send, but let other clients have a turn. The
+                    // signal count stays positive so no other run is started
+                    eventLoop.getScheduler().execute(this::runSender);
+                    return;
                 }
-            } catch( InterruptedException ex ) {
-                log.warn("connection monitor interrupted");
+            } catch( RejectedExecutionException e ) {
+                sendSignals.set(0); // shutting down
+                return;
+            } catch( Throwable e ) {
+                log.error("runSender: exception sending to " + hubAddress + ":" + hubPort, e);
+            }
+            signals = sendSignals.addAndGet(-signals);
+            if( signals == 0 ) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Collapse the queue if its too big, then send what we can. If the peer
+     * is slow try again shortly. If not connected do nothing, connecting
+     * signals the sender
+     *
+     * @return - true if there is more to send now
+     */
+    private boolean sendQueued() {
+        if( queuedBytes.get() > Math.max(maxQueueBytes, collapsedBytes * 2) && messageCollapser != null ) {
+            collapsedBytes = collapse();
+        } else if( queuedBytes.get() <= maxQueueBytes ) {
+            collapsedBytes = 0;
+        }
+        IoSession s = session;
+        if( s == null || !isConnected() ) {
+            return false;
+        }
+        List<QueuedMessage> batch = new ArrayList<>();
+        for( int frames = 0; frames < MAX_FRAMES_PER_RUN; frames++ ) {
+            if( s.getScheduledWriteBytes() >= MAX_SCHEDULED_WRITE_BYTES ) {
+                signalSenderLater();
+                return false;
             }
+            QueuedMessage first = sendQueue.poll();
+            if( first == null ) {
+                return false;
+            }
+            if( first.encode() == null ) {
+                settle(first);
+                continue;
+            }
+            batch.add(first);
+            drain(batch);
+            consume(batch);
+            batch.clear();
         }
+        return !sendQueue.isEmpty();
     }
 
-    private class QueueSender implements Runnable {
+    /**
+     * Replace everything queued with what the collapser returns. Only the
+     * sender takes from the queue, and others only add to its tail,
+     * so the result goes at the head to stay ahead of newer messages
+     *
+     * @return - the queued bytes after collapsing
+     */
+    private long collapse() {
+        List<QueuedMessage> pending = new ArrayList<>();
+        sendQueue.drainTo(pending);
+        List<Serializable> messages = new ArrayList<>(pending.size());
+        long bytes = 0;
+        for( QueuedMessage qm : pending ) {
+            Serializable m = qm.data.getMessage();
+            if( m != null ) {
+                messages.add(m);
+            }
+            qm.data.release();
+            bytes += qm.charge;
+        }
+        queuedBytes.addAndGet(-bytes);
+        List<Serializable> collapsed = messageCollapser.collapse(messages);
+        for( int i = collapsed.size() - 1; i >= 0; i-- ) {
+            QueuedMessage qm = new QueuedMessage(null, new EncodedMessage(collapsed.get(i), 1));
+            sendQueue.addFirst(qm);
+            queuedBytes.addAndGet(qm.charge);
+        }
+        queueOverflows.increment();
+        messagesCollapsed.add(messages.size() - collapsed.size());
+        long after = queuedBytes.get();
+        log.warn("collapse: send queue to {}:{} exceeded {} bytes, collapsed {} messages to {}, now {} bytes", hubAddress, hubPort, maxQueueBytes, messages.size(), collapsed.size(), after);
+        return after;
+    }
 
-        @Override
-        public void run() {
-            try {
-                long tm = 0;
-                int cnt = 0;
-                while( running ) {
-                    if( isConnected() ) {
-                        //might be infinite looping here, somehow
-                        cnt++;
-                        QueuedMessage item = sendQueue.take();
-                        consume(item);
-
-                        Thread.yield(); // try to be nice to rest of system, in case this is spamming messages
-
-                        if( cnt > 1000 ) {
-                            tm = System.currentTimeMillis() - tm;
-                            log.warn("QueueSender: have sent 1000 messages in {}ms", tm);
-                            cnt = 0;
-                            Thread.sleep(1000); // just in case we're in a tight loop, take a break every 1000 messages for a second
-                        }
-                    } else {
-                        Thread.sleep(5000);
-                    }
-                }
-            } catch( InterruptedException ex ) {
-                log.warn("QueueSender: thread finished");
+    /**
+     * Add whatever else is already queued to the batch, up to
+     * MAX_BATCH_BYTES. Only the sender takes from the queue, so the
+     * peeked message is the one polled. Messages which cant be encoded are
+     * dropped
+     */
+    private void drain(List<QueuedMessage> batch) {
+        int bytes = batch.get(0).encode().length;
+        QueuedMessage next;
+        while( (next = sendQueue.peek()) != null ) {
+            byte[] data = next.encode();
+            if( data == null ) {
+                settle(sendQueue.poll());
+                continue;
+            }
+            if( bytes + data.length > MAX_BATCH_BYTES ) {
+                break;
             }
+            batch.add(sendQueue.poll());
+            bytes += data.length;
         }
+    }
 
-        private void consume(QueuedMessage msg) {
-            if( session == null ) {
-                log.warn("QueueSender: socket gone");
-                sendQueue.add(msg);
-            } else {
-//                session.write(new InvalidateItemMessage("cache1", "hello world"));
-//                Type t = new BigIntegerType();
-//                session.write(new InvalidateItemMessage("cache1", new CacheKey(1, t, "ddd", "ddd", null)));
-//                Serializable data2 = (Serializable) SerializationUtils.clone(msg.data);
-                log.info("Transmit message to: {}", session.getRemoteAddress());
-                session.write(msg.data);
-                lastMessageTime = System.currentTimeMillis();
+    /**
+     * The message has been sent or dropped, so release it and stop counting
+     * it against the queue
+     */
+    private void settle(QueuedMessage msg) {
+        msg.data.release();
+        queuedBytes.addAndGet(-msg.charge);
+    }
 
+    private void consume(List<QueuedMessage> batch) {
+        IoSession s = session;
+        if( s == null ) {
+            log.warn("consume: socket gone");
+            // put back in front, in their original order
+            for( int i = batch.size() - 1; i >= 0; i-- ) {
+                sendQueue.addFirst(batch.get(i));
+            }
+            return;
+        }
+        try {
+            List<byte[]> frame = new ArrayList<>(batch.size());
+            long frameBytes = 0;
+            long now = System.nanoTime();
+            for( QueuedMessage msg : batch ) {
+                byte[] data = msg.encode();
+                if( data != null ) {
+                    frame.add(data);
+                    frameBytes += data.length;
+                }
+                long latency = now - msg.queuedAt;
+                queueLatencyNanos.add(latency);
+                maxQueueLatencyNanos.accumulateAndGet(latency, Math::max);
+            }
+            log.debug("Transmit {} messages to: {}", frame.size(), s.getRemoteAddress());
+            if( !frame.isEmpty() ) {
+                s.write(frame);
+            }
+            framesSent.increment();
+            messagesSent.add(frame.size());
+            bytesSent.add(frameBytes);
+            lastMessageTime = System.currentTimeMillis();
+        } finally {
+            // whatever happened, these are done with
+            for( QueuedMessage msg : batch ) {
+                settle(msg);
             }
         }
     }
@@ -349,11 +497,37 @@ public class TcpChannelClient implements LocalAddressAccessor, IoHandler {
     private class QueuedMessage {
 
         UUID dest;
-        byte[] data;
+        EncodedMessage data;
+        final long queuedAt = System.nanoTime();
+        final int charge; // bytes counted against maxQueueBytes
 
-        public QueuedMessage(UUID dest, Serializable data) {
+        public QueuedMessage(UUID dest, EncodedMessage data) {
             this.dest = dest;
-            this.data = SerializationUtils.serialize(data);
+            this.data = data;
+            this.charge = data.size();
+        }
+
+        /**
+         * Encode the message if not already done. A message which cant be
+         * encoded is logged and dropped, rather than losing the rest of the
+         * batch it would have been sent in
+         *
+         * @return - null if the message cant be sent
+         */
+        byte[] encode() {
+            try {
+                byte[] d = data.getData();
+                if( d != null && 4 + d.length > FrameCodecFactory.MAX_FRAME_BYTES ) {
+                    log.error("encode: dropping message to {}:{} of {} bytes, which is too big for a frame: {}", hubAddress, hubPort, d.length, data);
+                    messagesDropped.increment();
+                    return null;
+                }
+                return d;
+            } catch( RuntimeException e ) {
+                log.error("encode: dropping message to " + hubAddress + ":" + hubPort + " which could not be encoded: " + data, e);
+                messagesDropped.increment();
+                return null;
+            }
         }
     }
 }
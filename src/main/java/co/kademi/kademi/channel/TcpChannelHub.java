@@ -12,12 +12,10 @@ import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.LinkedBlockingQueue;
-import org.apache.commons.lang.SerializationUtils;
 import org.apache.mina.core.service.IoAcceptor;
 import org.apache.mina.core.service.IoHandlerAdapter;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.filter.codec.ProtocolCodecFilter;
-import org.apache.mina.filter.codec.serialization.ObjectSerializationCodecFactory;
 import org.apache.mina.transport.socket.SocketSessionConfig;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.slf4j.Logger;
@@ -62,7 +60,7 @@ public class TcpChannelHub implements Service {
         SocketSessionConfig sessionConf = (SocketSessionConfig) acceptor.getSessionConfig();
         sessionConf.setReuseAddress(true);
 
-        acceptor.getFilterChain().addLast("protocol", new ProtocolCodecFilter(new ObjectSerializationCodecFactory()));
+        acceptor.getFilterChain().addLast("protocol", new ProtocolCodecFilter(new FrameCodecFactory()));
         acceptor.getSessionConfig().setReadBufferSize(2048 * 8);
         acceptor.setHandler(new ChannelServerHandler());
         for (int i = 0; i < 10; i++) {
@@ -89,7 +87,7 @@ public class TcpChannelHub implements Service {
                 c.lastMessageTime = System.currentTimeMillis();
             }
             byte[] data = (byte[]) message;
-            Serializable msgObject = (Serializable) SerializationUtils.deserialize(data);
+            Serializable msgObject = MessageRegistry.decode(data);
             log.debug("messageReceived: from client {} msgClass={}", c, msgObject.getClass());
             channelListener.handleNotification(null, msgObject);
         }
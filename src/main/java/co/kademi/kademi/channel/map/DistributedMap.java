@@ -5,6 +5,15 @@ package co.kademi.kademi.channel.map;
 
 import co.kademi.kademi.channel.Channel;
 import co.kademi.kademi.channel.ChannelListener;
+import co.kademi.kademi.channel.MessageCodec;
+import co.kademi.kademi.channel.MessageRegistry;
+import static co.kademi.kademi.channel.MessageRegistry.readString;
+import static co.kademi.kademi.channel.MessageRegistry.readValue;
+import static co.kademi.kademi.channel.MessageRegistry.writeString;
+import static co.kademi.kademi.channel.MessageRegistry.writeValue;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
 import java.util.Collection;
@@ -19,6 +28,49 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class DistributedMap<K,V> implements Map<K,V> {
 
+    /**
+     * Called by MessageRegistry when it loads. Type ids 1 to 9 are reserved
+     * for map messages
+     */
+    public static void registerCodecs() {
+        MessageRegistry.register(1, AddItemMsg.class, new MessageCodec<AddItemMsg<Serializable, Serializable>>() {
+            @Override
+            public void write(AddItemMsg<Serializable, Serializable> msg, DataOutput out) throws IOException {
+                writeString(msg.getMapName(), out);
+                writeValue(msg.getKey(), out);
+                writeValue(msg.getValue(), out);
+            }
+
+            @Override
+            public AddItemMsg<Serializable, Serializable> read(DataInput in) throws IOException {
+                return new AddItemMsg<>(readString(in), readValue(in), readValue(in));
+            }
+        });
+        MessageRegistry.register(2, RemoveItemMsg.class, new MessageCodec<RemoveItemMsg<Serializable>>() {
+            @Override
+            public void write(RemoveItemMsg<Serializable> msg, DataOutput out) throws IOException {
+                writeString(msg.getMapName(), out);
+                writeValue(msg.getKey(), out);
+            }
+
+            @Override
+            public RemoveItemMsg<Serializable> read(DataInput in) throws IOException {
+                return new RemoveItemMsg<>(readString(in), readValue(in));
+            }
+        });
+        MessageRegistry.register(3, RemoveAllMsg.class, new MessageCodec<RemoveAllMsg<Serializable>>() {
+            @Override
+            public void write(RemoveAllMsg<Serializable> msg, DataOutput out) throws IOException {
+                writeString(msg.getMapName(), out);
+            }
+
+            @Override
+            public RemoveAllMsg<Serializable> read(DataInput in) throws IOException {
+                return new RemoveAllMsg<>(readString(in));
+            }
+        });
+    }
+
     private final Channel channel;
     private final String name;
     private Map<K,V> map = new ConcurrentHashMap<>();
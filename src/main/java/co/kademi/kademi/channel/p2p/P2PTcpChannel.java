@@ -5,6 +5,9 @@ package co.kademi.kademi.channel.p2p;
 
 import co.kademi.kademi.channel.Channel;
 import co.kademi.kademi.channel.ChannelListener;
+import co.kademi.kademi.channel.ClientEventLoop;
+import co.kademi.kademi.channel.EncodedMessage;
+import co.kademi.kademi.channel.MessageCollapser;
 import co.kademi.kademi.channel.TcpChannelClient;
 import co.kademi.kademi.channel.TcpChannelHub;
 import java.io.Serializable;
@@ -13,6 +16,7 @@ import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Enumeration;
@@ -47,7 +51,9 @@ public final class P2PTcpChannel implements Channel {
     private final String bindPrefix;
 
     private final String registerAddress;
-    private InetSocketAddress myAddress;    // this is determined during start
+    private volatile InetSocketAddress myAddress;    // this is determined during start
+    private volatile MessageCollapser messageCollapser;
+    private final ClientEventLoop clientEventLoop = new ClientEventLoop(); // shared by all clients
 
 
     /**
@@ -192,13 +198,81 @@ public final class P2PTcpChannel implements Channel {
             }
             clients.clear();
         }
+        clientEventLoop.dispose();
     }
 
     @Override
     public void sendNotification(Serializable msg) {
+        log.debug("sendNotification: to={} peers msg={}", clients.size(), msg);
+        // encoded once, by whichever client's sender thread gets to it first
+        EncodedMessage em = new EncodedMessage(msg, 1);
         for (TcpChannelClient client : clients) {
-            log.info("sendNotification: to={} msg={}", client, msg);
-            client.sendNotification(msg);
+            em.retain();
+            client.sendNotification(em);
+        }
+        em.release();
+    }
+
+    /**
+     * Send to the peer whose server has the given address. If we dont have
+     * a client for it yet, eg because it has only just connected to us, check
+     * discovery for new peers first
+     *
+     * @param memberId
+     * @param msg
+     */
+    @Override
+    public void sendNotification(String memberId, Serializable msg) {
+        TcpChannelClient client = findClient(memberId);
+        if (client == null) {
+            connectToServers();
+            client = findClient(memberId);
+        }
+        if (client == null) {
+            log.warn("sendNotification: no connection to member {}, dropping {}", memberId, msg);
+            return;
+        }
+        client.sendNotification(msg);
+    }
+
+    /**
+     * The address our server is registered with, eg 10.0.0.1:7020
+     *
+     * @return
+     */
+    @Override
+    public String getMemberId() {
+        InetSocketAddress a = myAddress;
+        return a == null ? null : memberId(a.getAddress(), a.getPort());
+    }
+
+    @Override
+    public Collection<String> getMemberIds() {
+        List<String> list = new ArrayList<>();
+        for (TcpChannelClient c : clients) {
+            list.add(memberId(c.getHubAddress(), c.getHubPort()));
+        }
+        return list;
+    }
+
+    private TcpChannelClient findClient(String memberId) {
+        for (TcpChannelClient c : clients) {
+            if (memberId(c.getHubAddress(), c.getHubPort()).equals(memberId)) {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    private static String memberId(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    @Override
+    public void setMessageCollapser(MessageCollapser collapser) {
+        this.messageCollapser = collapser;
+        for (TcpChannelClient client : clients) {
+            client.setMessageCollapser(collapser);
         }
     }
 
@@ -215,12 +289,13 @@ public final class P2PTcpChannel implements Channel {
     private void connectToServer(InetSocketAddress peerAddress) {
         log.info("Connect to {}", peerAddress);
         InetAddress add = peerAddress.getAddress();
-        TcpChannelClient c = new TcpChannelClient(add, peerAddress.getPort(), channelListeners, () -> {
+        TcpChannelClient c = new TcpChannelClient(add, peerAddress.getPort(), channelListeners, clientEventLoop, () -> {
             log.info("Lost connection to {}", peerAddress);
             this.discoveryService.unregisterAddresses(Arrays.asList(peerAddress));
 
             removeClient(peerAddress);
         });
+        c.setMessageCollapser(messageCollapser);
         this.clients.add(c);
         c.start();
     }
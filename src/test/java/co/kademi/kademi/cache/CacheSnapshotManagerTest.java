@@ -0,0 +1,61 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.type.LongType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class CacheSnapshotManagerTest {
+
+    @Test
+    public void testTombstonedKeyNotRestoredToLongKeyedRegion() throws Exception {
+        File file = File.createTempFile("snapshot", ".bin");
+        file.deleteOnExit();
+
+        Map<String, KademiCacheRegion> regions = new ConcurrentHashMap<>();
+        KademiCacheRegion r = createRegion(regions);
+        CacheKey k1 = cacheKey(1L);
+        CacheKey k2 = cacheKey(2L);
+        r.getCache().put(k1, "v1");
+        r.getCache().put(k2, "v2");
+        new CacheSnapshotManager(file, regions, null).save();
+
+        // restart
+        regions = new ConcurrentHashMap<>();
+        r = createRegion(regions);
+        CacheSnapshotManager sm = new CacheSnapshotManager(file, regions, null);
+        sm.restoreInBackground();
+        // a peer invalidates k1 while the restore waits for regions
+        sm.onInvalidation(r.getName(), k1, "p1");
+        long started = System.currentTimeMillis();
+        while (!"restored".equals(sm.getInfo().get("status")) && System.currentTimeMillis() - started < 20000) {
+            Thread.sleep(100);
+        }
+        Assert.assertEquals("restored", sm.getInfo().get("status"));
+        Assert.assertNull(r.getCache().getIfPresent(k1));
+        Assert.assertEquals("v2", r.getCache().getIfPresent(k2));
+    }
+
+    private KademiCacheRegion createRegion(Map<String, KademiCacheRegion> regions) {
+        CachePartitionService partitions = (changed) -> "p1";
+        InvalidationManager imgr = new InvalidationManager(null, partitions, regions);
+        KademiCacheRegion r = new KademiEntityRegion(null, "Thing", null, new Properties(), null, imgr, partitions, null);
+        regions.put(r.getName(), r);
+        return r;
+    }
+
+    private static CacheKey cacheKey(long id) {
+        return new CacheKey(id, LongType.INSTANCE, "Thing", null, null);
+    }
+}
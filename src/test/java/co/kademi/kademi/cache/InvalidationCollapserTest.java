@@ -0,0 +1,57 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import co.kademi.kademi.cache.channel.InvalidateAllMessage;
+import co.kademi.kademi.cache.channel.InvalidateBatchMessage;
+import co.kademi.kademi.cache.channel.InvalidateItemMessage;
+import co.kademi.kademi.cache.channel.InvalidatePartitionMessage;
+import co.kademi.kademi.cache.channel.SoftLockMessage;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class InvalidationCollapserTest {
+
+    @Test
+    public void testCollapseToPartitionFlushes() {
+        InvalidationCollapser c = new InvalidationCollapser(Collections.emptyMap());
+        List<Serializable> messages = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            messages.add(new InvalidateItemMessage("profile", (long) i, "p" + (i % 3), Collections.emptySet()));
+        }
+        messages.add(new InvalidateBatchMessage(Arrays.asList(new InvalidateItemMessage("website", 1L, "p1", null))));
+        messages.add(new SoftLockMessage("profile", 1L, true));
+        messages.add(new SoftLockMessage("profile", 1L, false));
+        // two transactions lock the same key, only one has unlocked it
+        messages.add(new SoftLockMessage("profile", 2L, true));
+        messages.add(new SoftLockMessage("profile", 2L, true));
+        messages.add(new SoftLockMessage("profile", 2L, false));
+        messages.add(new SoftLockMessage("profile", 3L, false));
+        messages.add(new InvalidateAllMessage("website", "p9"));
+        messages.add("other");
+
+        List<Serializable> list = c.collapse(messages);
+        Assert.assertEquals(7, list.size());
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("p" + i, ((InvalidatePartitionMessage) list.get(i)).getPartitionId());
+        }
+        Assert.assertEquals("p9", ((InvalidateAllMessage) list.get(3)).getPartitionId());
+        SoftLockMessage lock = (SoftLockMessage) list.get(4);
+        Assert.assertEquals(2L, lock.getKey());
+        Assert.assertTrue(lock.isLocked());
+        SoftLockMessage unlock = (SoftLockMessage) list.get(5);
+        Assert.assertEquals(3L, unlock.getKey());
+        Assert.assertFalse(unlock.isLocked());
+        Assert.assertEquals("other", list.get(6));
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Frees the same chunk from several threads at once, as happens when a
+ * removal listener and an explicit free race, and checks the chunk only goes
+ * back on the free list once
+ *
+ * @author brad
+ */
+public class OffHeapSlabPoolTest {
+
+    private static final int THREADS = 4;
+
+    @Test
+    public void testConcurrentDoubleFree() throws Exception {
+        OffHeapSlabPool pool = new OffHeapSlabPool(1024 * 1024, 64 * 1024);
+        for (int i = 0; i < 500; i++) {
+            OffHeapSlabPool.Ref ref = pool.write(new byte[100]);
+            AtomicInteger freed = new AtomicInteger();
+            CyclicBarrier barrier = new CyclicBarrier(THREADS);
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                Thread thread = new Thread(() -> {
+                    try {
+                        barrier.await();
+                    } catch (Exception ex) {
+                        throw new RuntimeException(ex);
+                    }
+                    if (pool.free(ref)) {
+                        freed.incrementAndGet();
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            Assert.assertEquals(1, freed.get());
+            Assert.assertEquals(0, pool.getBytesInUse());
+
+            // if the chunk was pushed twice these would share it
+            byte[] a = new byte[100];
+            byte[] b = new byte[100];
+            Arrays.fill(a, (byte) 1);
+            Arrays.fill(b, (byte) 2);
+            OffHeapSlabPool.Ref refA = pool.write(a);
+            OffHeapSlabPool.Ref refB = pool.write(b);
+            Assert.assertArrayEquals(a, pool.read(refA));
+            Assert.assertArrayEquals(b, pool.read(refB));
+            Assert.assertTrue(pool.free(refA));
+            Assert.assertTrue(pool.free(refB));
+        }
+    }
+}
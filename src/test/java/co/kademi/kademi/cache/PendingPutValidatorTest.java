@@ -0,0 +1,56 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class PendingPutValidatorTest {
+
+    @Test
+    public void testInvalidationVoidsPendingPut() {
+        PendingPutValidator v = new PendingPutValidator(60000);
+        long txTimestamp = System.currentTimeMillis();
+        v.registerPendingPut("p1", "k1");
+        v.registerPendingPut("p1", "k2");
+        v.invalidateKey("p1", "k1"); // another transaction commits an update
+        Assert.assertEquals(PendingPutValidator.REJECTED, v.acceptPutFromLoad("p1", "k1", txTimestamp));
+        Assert.assertTrue(v.acceptPutFromLoad("p1", "k2", txTimestamp) != PendingPutValidator.REJECTED);
+    }
+
+    @Test
+    public void testPutWithoutMissUsesTxTimestamp() {
+        PendingPutValidator v = new PendingPutValidator(60000);
+        long txTimestamp = System.currentTimeMillis();
+        v.invalidateKey(null, "k1"); // all partitions
+        Assert.assertEquals(PendingPutValidator.REJECTED, v.acceptPutFromLoad("p1", "k1", txTimestamp));
+        Assert.assertTrue(v.acceptPutFromLoad("p1", "k1", System.currentTimeMillis() + 1) != PendingPutValidator.REJECTED);
+    }
+
+    @Test
+    public void testMissAfterInvalidationUsesTxTimestamp() throws InterruptedException {
+        PendingPutValidator v = new PendingPutValidator(60000);
+        long txTimestamp = System.currentTimeMillis();
+        Thread.sleep(2);
+        v.invalidateKey("p1", "k1"); // committed after our transaction started
+        v.registerPendingPut("p1", "k1"); // but we missed the cache afterwards
+        Assert.assertEquals(PendingPutValidator.REJECTED, v.acceptPutFromLoad("p1", "k1", txTimestamp));
+        v.registerPendingPut("p1", "k1");
+        Assert.assertTrue(v.acceptPutFromLoad("p1", "k1", System.currentTimeMillis() + 1) != PendingPutValidator.REJECTED);
+    }
+
+    @Test
+    public void testInvalidatedWhilePutting() {
+        PendingPutValidator v = new PendingPutValidator(60000);
+        v.registerPendingPut("p1", "k1");
+        long seq = v.acceptPutFromLoad("p1", "k1", System.currentTimeMillis());
+        Assert.assertFalse(v.wasInvalidatedSince("p1", "k1", seq));
+        v.invalidateKey("p1", "k1");
+        Assert.assertTrue(v.wasInvalidatedSince("p1", "k1", seq));
+    }
+}
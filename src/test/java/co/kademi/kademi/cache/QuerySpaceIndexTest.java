@@ -0,0 +1,46 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class QuerySpaceIndexTest {
+
+    @Test
+    public void testRemoveBySpace() {
+        QuerySpaceIndex idx = new QuerySpaceIndex();
+        idx.add("p1", "select x from profile p0_", set("profile"));
+        idx.add("p1", "select x from website w0_", set("website"));
+        idx.add("p2", "select x from profile p0_", set("public.\"Profile\""));
+        Map<java.io.Serializable, Set<Object>> removed = idx.remove("p1", Collections.singleton("PROFILE"));
+        Assert.assertEquals(Collections.singleton("p1"), removed.keySet());
+        Assert.assertEquals(Collections.singleton("select x from profile p0_"), removed.get("p1"));
+
+        removed = idx.remove(null, Collections.singleton("profile"));
+        Assert.assertEquals(Collections.singleton("p2"), removed.keySet());
+    }
+
+    @Test
+    public void testUnknownSpacesMatchAny() {
+        QuerySpaceIndex idx = new QuerySpaceIndex();
+        idx.add("p1", "select x from profile_view p0_", null);
+        idx.add("p1", "select x from website w0_", set("website"));
+        Map<java.io.Serializable, Set<Object>> removed = idx.remove("p1", Collections.singleton("profile"));
+        Assert.assertEquals(Collections.singleton("select x from profile_view p0_"), removed.get("p1"));
+    }
+
+    private static Set<String> set(String... s) {
+        return new HashSet<>(Arrays.asList(s));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Replays an access trace against the guava LRU caches and the tinylfu
+ * caches, and compares hit rates. The trace is a skewed (zipf like) working
+ * set of entities, interrupted by scans over thousands of entities which are
+ * each read once, like a report or reindex. Each access is a get, and a put
+ * on a miss, as hibernate does
+ *
+ * @author brad
+ */
+public class TinyLfuCacheTest {
+
+    private static final int CACHE_SIZE = 1000;
+
+    @Test
+    public void testHitRateUnderScans() {
+        long[] trace = trace(200000, 5000, 0.9);
+        Cache<Object, Object> lru = CacheBuilder.newBuilder().maximumSize(CACHE_SIZE).expireAfterWrite(1, TimeUnit.HOURS).build();
+        double lruHitRate = replay(lru, trace, id -> "e#" + id);
+        double tinyLfuHitRate = replay(new TinyLfuCache(CACHE_SIZE, ExpiryPolicy.ofSeconds(3600), null), trace, id -> "e#" + id);
+        double longKeyedHitRate = replay(new LongKeyedCache(CACHE_SIZE, ExpiryPolicy.ofSeconds(3600), true), trace, id -> new LongKeyedCache.EntityId("e", id));
+        Assert.assertTrue(tinyLfuHitRate > lruHitRate);
+        Assert.assertTrue(longKeyedHitRate > lruHitRate);
+    }
+
+    @Test
+    public void testBoundedAndConsistent() {
+        TinyLfuCache c = new TinyLfuCache(100, ExpiryPolicy.ofSeconds(3600), null);
+        for (int i = 0; i < 10000; i++) {
+            c.put("k" + i, i);
+            Object v = c.getIfPresent("k" + (i / 2));
+            if (v != null) {
+                Assert.assertEquals(i / 2, v);
+            }
+        }
+        Assert.assertTrue(c.size() <= 112); // each of 16 segments holds up to ceil(100 / 16)
+        // every put of a new key is either still held, evicted something, or was rejected
+        Assert.assertEquals(10000, c.size() + c.stats().evictionCount() + c.rejectionCount());
+        c.invalidateAll();
+        Assert.assertEquals(0, c.size());
+    }
+
+    @Test
+    public void testTrimKeepsRecentlyRead() {
+        TinyLfuCache c = new TinyLfuCache(1000, ExpiryPolicy.ofSeconds(3600), null);
+        for (int i = 0; i < 1000; i++) {
+            c.put("k" + i, i);
+        }
+        for (int i = 0; i < 100; i++) {
+            c.getIfPresent("k" + i);
+        }
+        long before = c.size();
+        int removed = c.trimTo(500);
+        Assert.assertTrue(c.size() <= 512); // each of 16 segments trimmed to ceil(500 / 16)
+        Assert.assertEquals(before - c.size(), removed);
+        Assert.assertEquals(removed, c.stats().evictionCount());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertNotNull(c.getIfPresent("k" + i));
+        }
+    }
+
+    @Test
+    public void testConcurrentMapOps() {
+        checkConcurrentMapOps(new TinyLfuCache(100, ExpiryPolicy.ofSeconds(3600), null).asMap(), "k");
+        checkConcurrentMapOps(new LongKeyedCache(100, ExpiryPolicy.ofSeconds(3600), true).asMap(), new LongKeyedCache.EntityId("e", 1));
+    }
+
+    private static void checkConcurrentMapOps(ConcurrentMap<Object, Object> m, Object key) {
+        Assert.assertNull(m.putIfAbsent(key, "a"));
+        Assert.assertEquals("a", m.putIfAbsent(key, "b"));
+        Assert.assertFalse(m.replace(key, "b", "c"));
+        Assert.assertTrue(m.replace(key, "a", "c"));
+        Assert.assertEquals("c", m.replace(key, "d"));
+        Assert.assertFalse(m.remove(key, "c"));
+        Assert.assertTrue(m.remove(key, "d"));
+        Assert.assertNull(m.get(key));
+        Assert.assertNull(m.replace(key, "e"));
+        Assert.assertNull(m.get(key));
+    }
+
+    private static double replay(Cache<Object, Object> cache, long[] trace, LongFunction<Object> keys) {
+        long hits = 0;
+        for (long id : trace) {
+            Object key = keys.apply(id);
+            if (cache.getIfPresent(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, id);
+            }
+        }
+        return hits / (double) trace.length;
+    }
+
+    /**
+     *
+     * @param length
+     * @param hotKeys - size of the skewed working set
+     * @param skew - zipf exponent
+     * @return
+     */
+    private static long[] trace(int length, int hotKeys, double skew) {
+        Random rnd = new Random(42);
+        double[] cdf = new double[hotKeys];
+        double sum = 0;
+        for (int i = 0; i < hotKeys; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        long[] trace = new long[length];
+        long nextScanId = 1000000;
+        int i = 0;
+        while (i < length) {
+            if (rnd.nextInt(10000) == 0) {
+                // a scan of entities which are only read once
+                int scan = 2000 + rnd.nextInt(3000);
+                for (int j = 0; j < scan && i < length; j++) {
+                    trace[i++] = nextScanId++;
+                }
+            } else {
+                double r = rnd.nextDouble() * sum;
+                int k = Arrays.binarySearch(cdf, r);
+                trace[i++] = k >= 0 ? k : -k - 1;
+            }
+        }
+        return trace;
+    }
+}
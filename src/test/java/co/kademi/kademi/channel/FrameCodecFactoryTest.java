@@ -0,0 +1,47 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import java.util.Arrays;
+import java.util.Queue;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.filter.codec.ProtocolCodecSession;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+import org.apache.mina.filter.codec.ProtocolEncoderException;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class FrameCodecFactoryTest {
+
+    @Test
+    public void testSplitsOversizeFrames() throws Exception {
+        FrameCodecFactory f = new FrameCodecFactory();
+        ProtocolCodecSession session = new ProtocolCodecSession();
+        ProtocolEncoder encoder = f.getEncoder(session);
+        byte[] big = new byte[FrameCodecFactory.MAX_FRAME_BYTES / 3];
+        encoder.encode(session, Arrays.asList(big, big, big, new byte[10]), session.getEncoderOutput());
+
+        Queue<Object> frames = session.getEncoderOutputQueue();
+        Assert.assertEquals(2, frames.size());
+        ProtocolDecoder decoder = f.getDecoder(session);
+        for (Object frame : frames) {
+            IoBuffer buf = (IoBuffer) frame;
+            Assert.assertTrue(buf.remaining() <= 4 + FrameCodecFactory.MAX_FRAME_BYTES);
+            decoder.decode(session, buf, session.getDecoderOutput());
+        }
+        Assert.assertEquals(4, session.getDecoderOutputQueue().size());
+    }
+
+    @Test(expected = ProtocolEncoderException.class)
+    public void testRejectsOversizeMessage() throws Exception {
+        FrameCodecFactory f = new FrameCodecFactory();
+        ProtocolCodecSession session = new ProtocolCodecSession();
+        f.getEncoder(session).encode(session, new byte[FrameCodecFactory.MAX_FRAME_BYTES], session.getEncoderOutput());
+    }
+}
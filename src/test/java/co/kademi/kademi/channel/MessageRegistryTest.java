@@ -0,0 +1,81 @@
+/*
+ * Kademi
+ */
+package co.kademi.kademi.channel;
+
+import co.kademi.kademi.cache.channel.InvalidateBatchMessage;
+import co.kademi.kademi.cache.channel.InvalidateItemMessage;
+import co.kademi.kademi.channel.map.DistributedMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+import org.apache.commons.lang.SerializationUtils;
+import org.hibernate.cache.spi.CacheKey;
+import org.hibernate.type.LongType;
+import org.hibernate.type.StringType;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author brad
+ */
+public class MessageRegistryTest {
+
+    @Test
+    public void testRegisteredRoundTrip() {
+        UUID partition = UUID.randomUUID();
+        InvalidateItemMessage m = new InvalidateItemMessage("profile", 123L, partition, Collections.singleton("profile"));
+        byte[] data = MessageRegistry.encode(m);
+        InvalidateItemMessage m2 = (InvalidateItemMessage) MessageRegistry.decode(data);
+        Assert.assertEquals("profile", m2.getCacheName());
+        Assert.assertEquals(123L, m2.getKey());
+        Assert.assertEquals(partition, m2.getPartitionId());
+        Assert.assertEquals(Collections.singleton("profile"), m2.getSpaces());
+        Assert.assertNull(((InvalidateItemMessage) MessageRegistry.decode(MessageRegistry.encode(new InvalidateItemMessage("x", "k", null)))).getSpaces());
+
+        Assert.assertTrue(data.length * 8 < SerializationUtils.serialize(SerializationUtils.serialize(m)).length);
+    }
+
+    @Test
+    public void testFallback() {
+        Date d = new Date();
+        Assert.assertEquals(d, MessageRegistry.decode(MessageRegistry.encode(d)));
+
+        DistributedMap.AddItemMsg m = new DistributedMap.AddItemMsg("map", "key", d);
+        DistributedMap.AddItemMsg m2 = (DistributedMap.AddItemMsg) MessageRegistry.decode(MessageRegistry.encode(m));
+        Assert.assertEquals("key", m2.getKey());
+        Assert.assertEquals(d, m2.getValue());
+    }
+
+    @Test
+    public void testEstimateSize() {
+        InvalidateItemMessage item = new InvalidateItemMessage("profile", "k\u00e9y", UUID.randomUUID(), Collections.singleton("profile"));
+        InvalidateBatchMessage batch = new InvalidateBatchMessage(Arrays.asList(item, new InvalidateItemMessage("x", 1L, null)));
+        Assert.assertEquals(MessageRegistry.encode(item).length, MessageRegistry.estimateSize(item));
+        Assert.assertEquals(MessageRegistry.encode(batch).length, MessageRegistry.estimateSize(batch));
+        // unknown for java serialized values, so the queue has to encode to find out
+        Assert.assertEquals(-1, MessageRegistry.estimateSize(new InvalidateItemMessage("x", new Date(), null)));
+        Assert.assertEquals(-1, MessageRegistry.estimateSize(new Date()));
+        EncodedMessage em = new EncodedMessage(new Date(), 1);
+        Assert.assertEquals(MessageRegistry.encode(new Date()).length, em.size());
+    }
+
+    @Test
+    public void testCacheKey() {
+        CacheKey key = new CacheKey(123L, LongType.INSTANCE, "co.kademi.model.Profile", null, null);
+        InvalidateItemMessage m = new InvalidateItemMessage("co.kademi.model.Profile", key, UUID.randomUUID());
+        byte[] data = MessageRegistry.encode(m);
+        InvalidateItemMessage m2 = (InvalidateItemMessage) MessageRegistry.decode(data);
+        Assert.assertEquals(key, m2.getKey());
+        Assert.assertEquals(key.hashCode(), m2.getKey().hashCode());
+        Assert.assertEquals(data.length, MessageRegistry.estimateSize(m));
+        Assert.assertTrue("encoded " + data.length + " bytes", data.length < 100);
+        Assert.assertTrue(data.length * 4 < SerializationUtils.serialize(key).length);
+
+        CacheKey tenantKey = new CacheKey("abc", StringType.INSTANCE, "co.kademi.model.Profile.roles", "t1", null);
+        m2 = (InvalidateItemMessage) MessageRegistry.decode(MessageRegistry.encode(new InvalidateItemMessage("x", tenantKey, null)));
+        Assert.assertEquals(tenantKey, m2.getKey());
+    }
+}